@@ -0,0 +1,115 @@
+package mailserver.benchmark;
+
+import mailserver.mailbox.Mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic users and mailboxes shared by the benchmarks. The servers and mailboxes resolve the users database and the
+ * mail store against the working directory, so the benchmarks run in a scratch directory (the <code>jmh</code> task
+ * uses <code>benchmarks/build/jmh-work</code>), where the fixture creates its own users database. The fixture refuses
+ * to run in a directory with a users database it did not create, so it never overwrites real mailboxes.
+ */
+final class BenchmarkFixture {
+
+    static final int USERS = 1000;
+    static final String PASSWORD = "benchmark";
+
+    private static final String MARKER_FILE_NAME = ".benchmark";
+    private static final int LINE_LENGTH = 76;
+
+    private BenchmarkFixture() {
+    }
+
+    /**
+     * Returns the address of a synthetic user.
+     *
+     * @param n The number of the user, from 0 to <code>USERS - 1</code>.
+     * @return The user's address.
+     */
+    static String user(int n) {
+        return "user" + n + "@bench.example";
+    }
+
+    /**
+     * Creates the users database in the working directory, unless it was already created by a previous fork, and
+     * removes any mail store left by a previous benchmark. Must be called before any mailbox is used, as the users
+     * database is loaded once per process.
+     *
+     * @throws IOException If the users database cannot be created.
+     */
+    static void prepare() throws IOException {
+        File users = new File(Mailbox.USER_FILE_NAME);
+        File marker = new File(MARKER_FILE_NAME);
+        if (users.exists() && !marker.exists())
+            throw new IllegalStateException("The benchmarks must run in a scratch directory, but " +
+                    users.getAbsolutePath() + " already exists");
+        if (!users.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            marker.createNewFile();
+            try (PrintWriter writer = new PrintWriter(users, StandardCharsets.US_ASCII)) {
+                for (int i = 0; i < USERS; i++)
+                    writer.println(user(i) + " " + PASSWORD);
+            }
+        }
+        delete(Mailbox.USER_MAIL_BASE_DIRECTORY.toPath());
+    }
+
+    /**
+     * Fills a user's mailbox with messages, written directly as message files, and loads it once so its index is
+     * built before the benchmark starts.
+     *
+     * @param user     The user's address.
+     * @param messages The number of messages.
+     * @param size     The size of each message, in bytes.
+     * @return The loaded mailbox.
+     * @throws Exception If the mailbox cannot be filled or loaded.
+     */
+    static Mailbox fillMailbox(String user, int messages, int size) throws Exception {
+        Path directory = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, user).toPath();
+        delete(directory);
+        Files.createDirectories(directory);
+        byte[] content = message(size);
+        for (int id = 0; id < messages; id++)
+            Files.write(directory.resolve(id + Mailbox.MAIL_FILE_SUFFIX), content);
+        Mailbox mailbox = new Mailbox(user);
+        mailbox.loadMessages(PASSWORD);
+        return mailbox;
+    }
+
+    /**
+     * Creates the content of a message as it is stored: a few headers and a body of full lines, with CRLF line
+     * endings.
+     *
+     * @param size The size of the message, in bytes.
+     * @return The message content.
+     */
+    static byte[] message(int size) {
+        StringBuilder message = new StringBuilder(size);
+        message.append("From: <sender@bench.example>\r\nSubject: benchmark\r\n\r\n");
+        while (message.length() < size) {
+            int length = Math.min(LINE_LENGTH, size - message.length() - 2);
+            message.append("x".repeat(Math.max(0, length))).append("\r\n");
+        }
+        return message.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Deletes a file or directory tree, if it exists.
+     */
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package mailserver.benchmark;
+
+/**
+ * A histogram of latencies with a fixed relative precision, in the style of HdrHistogram: values are counted in
+ * log-linear buckets, each power of two split into 128 sub-buckets, so any recorded value is reported within 1% of its
+ * true value, from nanoseconds to hours, in a fixed array of about 7,300 counters. Recording a value takes a few
+ * arithmetic operations and never allocates.
+ * <p>
+ * A histogram is not thread-safe: each client thread records into its own histograms, which are merged with
+ * <code>add()</code> when the run is over.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int COUNTERS = LINEAR_LIMIT + (Long.SIZE - 2 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[COUNTERS];
+    private long totalCount = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+    private double sum = 0;
+
+    /**
+     * Records a value.
+     *
+     * @param value The value, e.g. a latency in nanoseconds. Negative values are recorded as 0.
+     */
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[index(value)]++;
+        totalCount++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    /**
+     * Adds all the values recorded in another histogram to this one.
+     *
+     * @param other The histogram to add, which is not modified.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < COUNTERS; i++)
+            counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    /**
+     * Returns the value at a percentile of the recorded values.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The highest value equivalent to the value at the percentile (i.e., the upper end of its bucket, but no
+     * more than the maximum recorded), or 0 if no value was recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        if (totalCount == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < COUNTERS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(max, highestEquivalentValue(i));
+        }
+        return max;
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * Returns the counter for a value. Values below <code>LINEAR_LIMIT</code> have their own counter; above it, the
+     * counter is given by the position of the highest bit and the next <code>SUB_BUCKET_BITS</code> bits.
+     */
+    private static int index(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the highest value counted by a counter.
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
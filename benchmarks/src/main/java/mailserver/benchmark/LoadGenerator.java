@@ -0,0 +1,418 @@
+package mailserver.benchmark;
+
+import mailserver.mailbox.Mailbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for the SMTP and POP3 servers. A number of SMTP clients send messages with sizes and recipient counts
+ * drawn from configurable distributions, while a number of POP3 clients poll their mailboxes with a configurable
+ * command pattern. The throughput and the latency distribution (p50, p99, p99.9) of every command are reported at the
+ * end of the run, and may also be written as CSV.
+ * <p>
+ * The servers may be running already (by default, on ports 2525 and 1110 of the local host, with the accounts of
+ * <code>users.txt</code>), or be launched by the load generator in separate processes with <code>--launch</code>,
+ * in the selected connection mode, with synthetic accounts in the working directory (see BenchmarkFixture). The load
+ * generator needs no network access beyond the servers, so it can run on a single machine.
+ * <p>
+ * The clients are closed-loop: each one waits for a reply before sending the next command, so latencies measure the
+ * server's response to each command under the offered concurrency.
+ */
+public class LoadGenerator {
+
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private static final String USAGE = String.join("\n",
+            "Usage: LoadGenerator [options]",
+            "  --host HOST                 Server host (default 127.0.0.1)",
+            "  --smtp-port PORT            SMTP server port (default 2525)",
+            "  --pop-port PORT             POP3 server port (default 1110)",
+            "  --launch MODE               Launch both servers in the given connection mode (thread, virtual or nio),",
+            "                              with synthetic accounts in the working directory",
+            "  --server-opt OPTION         JVM option for the launched servers, e.g. -Dmailserver.journal=false;",
+            "                              may be repeated",
+            "  --users-file FILE           Accounts (\"address password\" lines) of running servers",
+            "                              (default users.txt)",
+            "  --users N                   Number of accounts used (default 100, or all the accounts of the file)",
+            "  --smtp-clients N            Concurrent SMTP clients (default 4)",
+            "  --pop-clients N             Concurrent POP3 clients, each polling its own mailbox (default 4)",
+            "  --duration SECONDS          Measured duration (default 30)",
+            "  --warmup SECONDS            Warmup before measuring (default 5)",
+            "  --message-sizes DIST        Message sizes in bytes, as value:weight pairs",
+            "                              (default 1024:50,8192:35,65536:12,524288:3)",
+            "  --recipients DIST           Recipients per message, as value:weight pairs (default 1:80,5:15,50:5)",
+            "  --messages-per-session N    Messages sent per SMTP connection (default 10)",
+            "  --poll COMMANDS             POP3 commands of each poll after login (default STAT,LIST,RETR,DELE,QUIT)",
+            "  --poll-interval MILLIS      Pause between the polls of each POP3 client (default 100)",
+            "  --retr-max N                Maximum messages retrieved and deleted per poll (default 100)",
+            "  --seed N                    Random seed (default 1)",
+            "  --csv FILE                  Also write the per-command results as CSV");
+
+    private String host = "127.0.0.1";
+    private int smtpPort = 2525;
+    private int popPort = 1110;
+    private String launchMode = null;
+    private final List<String> serverOptions = new ArrayList<>();
+    private File usersFile = new File(Mailbox.USER_FILE_NAME);
+    private int users = -1;
+    private int smtpClients = 4;
+    private int popClients = 4;
+    private long duration = 30;
+    private long warmup = 5;
+    private Distribution messageSizes = Distribution.parse("1024:50,8192:35,65536:12,524288:3");
+    private Distribution recipients = Distribution.parse("1:80,5:15,50:5");
+    private int messagesPerSession = 10;
+    private List<String> pollPattern = List.of("STAT", "LIST", "RETR", "DELE", "QUIT");
+    private long pollInterval = 100;
+    private int retrMax = 100;
+    private long seed = 1;
+    private File csvFile = null;
+
+    private final List<String[]> accounts = new ArrayList<>();
+    private final Map<Integer, byte[]> messages = new HashMap<>();
+    private final List<Process> servers = new ArrayList<>();
+    private volatile long end;
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args The command-line options (see <code>--help</code>).
+     * @throws Exception If the servers cannot be launched or reached.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            generator.run();
+        } finally {
+            generator.stopServers();
+        }
+    }
+
+    /**
+     * Parses the command-line options.
+     *
+     * @throws IllegalArgumentException If an option is unknown or has an invalid value.
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--help"))
+                throw new IllegalArgumentException("MailServer load generator");
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--host": host = value; break;
+                    case "--smtp-port": smtpPort = Integer.parseInt(value); break;
+                    case "--pop-port": popPort = Integer.parseInt(value); break;
+                    case "--launch": launchMode = value.toLowerCase(Locale.ROOT); break;
+                    case "--server-opt": serverOptions.add(value); break;
+                    case "--users-file": usersFile = new File(value); break;
+                    case "--users": users = Integer.parseInt(value); break;
+                    case "--smtp-clients": smtpClients = Integer.parseInt(value); break;
+                    case "--pop-clients": popClients = Integer.parseInt(value); break;
+                    case "--duration": duration = Long.parseLong(value); break;
+                    case "--warmup": warmup = Long.parseLong(value); break;
+                    case "--message-sizes": messageSizes = Distribution.parse(value); break;
+                    case "--recipients": recipients = Distribution.parse(value); break;
+                    case "--messages-per-session": messagesPerSession = Integer.parseInt(value); break;
+                    case "--poll": pollPattern = Arrays.asList(value.toUpperCase(Locale.ROOT).split(",")); break;
+                    case "--poll-interval": pollInterval = Long.parseLong(value); break;
+                    case "--retr-max": retrMax = Integer.parseInt(value); break;
+                    case "--seed": seed = Long.parseLong(value); break;
+                    case "--csv": csvFile = new File(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+        }
+    }
+
+    /**
+     * Prepares the accounts and message contents, launches the servers if requested, runs the clients for the warmup
+     * and measured periods, and reports the results.
+     */
+    private void run() throws Exception {
+        if (launchMode != null) {
+            BenchmarkFixture.prepare();
+            int count = users < 0 ? 100 : Math.min(users, BenchmarkFixture.USERS);
+            for (int i = 0; i < count; i++)
+                accounts.add(new String[]{BenchmarkFixture.user(i), BenchmarkFixture.PASSWORD});
+            launchServers();
+        } else {
+            readAccounts();
+        }
+        if (accounts.isEmpty())
+            throw new IllegalStateException("No accounts to send messages to");
+        for (int size : messageSizes.values) {
+            byte[] content = BenchmarkFixture.message(size);
+            byte[] message = Arrays.copyOf(content, content.length + 3);
+            System.arraycopy(".\r\n".getBytes(StandardCharsets.US_ASCII), 0, message, content.length, 3);
+            messages.put(size, message);
+        }
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+        end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+        SplittableRandom seeds = new SplittableRandom(seed);
+        List<Thread> threads = new ArrayList<>();
+        List<LoadRecorder> recorders = new ArrayList<>();
+        for (int i = 0; i < smtpClients; i++) {
+            LoadRecorder recorder = new LoadRecorder(measureStart);
+            recorders.add(recorder);
+            threads.add(new Thread(new SmtpLoadClient(this, recorder, seeds.nextLong()), "smtp-client-" + i));
+        }
+        for (int i = 0; i < popClients; i++) {
+            LoadRecorder recorder = new LoadRecorder(measureStart);
+            recorders.add(recorder);
+            threads.add(new Thread(new PopLoadClient(this, recorder, accounts.get(i % accounts.size())),
+                    "pop-client-" + i));
+        }
+        System.out.println("Running " + smtpClients + " SMTP and " + popClients + " POP3 clients against " + host +
+                " for " + warmup + " s of warmup and " + duration + " s of measurement...");
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        LoadRecorder total = new LoadRecorder(measureStart);
+        for (LoadRecorder recorder : recorders)
+            total.add(recorder);
+        report(total, System.out);
+        if (csvFile != null) {
+            try (PrintWriter csv = new PrintWriter(csvFile, StandardCharsets.UTF_8)) {
+                writeCsv(total, csv);
+            }
+        }
+    }
+
+    /**
+     * Reads the accounts of running servers from the users file. Passwords stored as hashes cannot be used to log in.
+     */
+    private void readAccounts() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(usersFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null && (users < 0 || accounts.size() < users)) {
+                String[] account = line.trim().split(" ", 2);
+                if (account.length == 2)
+                    accounts.add(account);
+            }
+        }
+    }
+
+    /**
+     * Launches the SMTP and POP3 servers in separate processes, in the working directory, and waits until they
+     * accept connections. Their output is written to <code>smtp.log</code> and <code>pop.log</code>.
+     */
+    private void launchServers() throws IOException, InterruptedException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        String classPath = System.getProperty("java.class.path");
+        String[][] servers = {{"mailserver.net.MySMTPServer", Integer.toString(smtpPort), "smtp.log"},
+                {"mailserver.net.MyPOPServer", Integer.toString(popPort), "pop.log"}};
+        for (String[] server : servers) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(serverOptions);
+            command.addAll(List.of("-cp", classPath, server[0], server[1], launchMode));
+            this.servers.add(new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(new File(server[2])).start());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopServers));
+        for (int port : new int[]{smtpPort, popPort}) {
+            ProtocolClient.connect(host, port, STARTUP_TIMEOUT).close(); // the server is listening
+        }
+    }
+
+    private synchronized void stopServers() {
+        for (Process server : servers)
+            server.destroy();
+        servers.clear();
+    }
+
+    /**
+     * Prints the results: the overall message rates, and the throughput and latency percentiles of each command.
+     */
+    private void report(LoadRecorder total, PrintStream out) {
+        double seconds = duration;
+        out.println();
+        out.printf(Locale.ROOT, "Messages sent:      %10d (%.1f/s, %.2f MB/s)%n", total.getMessagesSent(),
+                total.getMessagesSent() / seconds, total.getBytesSent() / seconds / 1e6);
+        out.printf(Locale.ROOT, "Messages retrieved: %10d (%.1f/s, %.2f MB/s)%n", total.getMessagesRetrieved(),
+                total.getMessagesRetrieved() / seconds, total.getBytesReceived() / seconds / 1e6);
+        out.println();
+        out.printf(Locale.ROOT, "%-10s %10s %8s %10s %10s %10s %10s %10s %10s%n", "Command", "Count", "Errors",
+                "Rate/s", "Mean ms", "p50 ms", "p99 ms", "p99.9 ms", "Max ms");
+        for (String command : commands(total)) {
+            LatencyHistogram histogram = total.getLatencies().getOrDefault(command, new LatencyHistogram());
+            out.printf(Locale.ROOT, "%-10s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n", command,
+                    histogram.getTotalCount(), total.getErrors(command), histogram.getTotalCount() / seconds,
+                    histogram.getMean() / 1e6, histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                    histogram.getMax() / 1e6);
+        }
+    }
+
+    /**
+     * Writes the per-command results as CSV, with latencies in microseconds.
+     */
+    private void writeCsv(LoadRecorder total, PrintWriter csv) {
+        csv.println("command,count,errors,rate_per_s,mean_us,p50_us,p99_us,p999_us,max_us");
+        for (String command : commands(total)) {
+            LatencyHistogram histogram = total.getLatencies().getOrDefault(command, new LatencyHistogram());
+            csv.printf(Locale.ROOT, "%s,%d,%d,%.3f,%.1f,%.1f,%.1f,%.1f,%.1f%n", command, histogram.getTotalCount(),
+                    total.getErrors(command), histogram.getTotalCount() / (double) duration,
+                    histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3,
+                    histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                    histogram.getMax() / 1e3);
+        }
+    }
+
+    /**
+     * Returns the commands with any measurement, successful or not.
+     */
+    private static List<String> commands(LoadRecorder total) {
+        List<String> commands = new ArrayList<>(total.getLatencies().keySet());
+        for (String command : total.getErrors().keySet()) {
+            if (!commands.contains(command))
+                commands.add(command);
+        }
+        return commands;
+    }
+
+    /**
+     * Sleeps, unless the run is over.
+     *
+     * @param millis The time to sleep, in milliseconds.
+     */
+    static void pause(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean isOver() {
+        return System.nanoTime() >= end;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getSmtpPort() {
+        return smtpPort;
+    }
+
+    int getPopPort() {
+        return popPort;
+    }
+
+    List<String[]> getAccounts() {
+        return accounts;
+    }
+
+    Distribution getMessageSizes() {
+        return messageSizes;
+    }
+
+    Distribution getRecipients() {
+        return recipients;
+    }
+
+    int getMessagesPerSession() {
+        return messagesPerSession;
+    }
+
+    List<String> getPollPattern() {
+        return pollPattern;
+    }
+
+    long getPollInterval() {
+        return pollInterval;
+    }
+
+    int getRetrMax() {
+        return retrMax;
+    }
+
+    /**
+     * Returns the content of a message of one of the configured sizes, terminated for DATA.
+     *
+     * @param size The message size, from the message size distribution.
+     * @return The content, which must not be modified.
+     */
+    byte[] getMessage(int size) {
+        return messages.get(size);
+    }
+
+    /**
+     * A discrete distribution of integer values with relative weights, written as "value:weight" pairs separated by
+     * commas (a value without a weight has weight 1).
+     */
+    static class Distribution {
+
+        private final int[] values;
+        private final double[] cumulative;
+
+        private Distribution(int[] values, double[] weights) {
+            this.values = values;
+            this.cumulative = new double[weights.length];
+            double sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                sum += weights[i];
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < cumulative.length; i++)
+                cumulative[i] /= sum;
+        }
+
+        static Distribution parse(String text) {
+            String[] pairs = text.split(",");
+            int[] values = new int[pairs.length];
+            double[] weights = new double[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                String[] pair = pairs[i].trim().split(":");
+                values[i] = Integer.parseInt(pair[0]);
+                weights[i] = pair.length > 1 ? Double.parseDouble(pair[1]) : 1;
+                if (values[i] < 0 || weights[i] < 0)
+                    throw new NumberFormatException(text);
+            }
+            return new Distribution(values, weights);
+        }
+
+        int sample(SplittableRandom random) {
+            double point = random.nextDouble();
+            for (int i = 0; i < cumulative.length - 1; i++) {
+                if (point < cumulative[i])
+                    return values[i];
+            }
+            return values[values.length - 1];
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package mailserver.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The measurements of one load generator client thread: a latency histogram and an error count for each command, and
+ * the amount of data transferred. Only the commands started after the warmup period are counted. Not thread-safe; the
+ * recorders of all the clients are merged with <code>add()</code> when the run is over.
+ */
+class LoadRecorder {
+
+    private final long measureStart;
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<String, Long> errors = new LinkedHashMap<>();
+    private long messagesSent = 0;
+    private long messagesRetrieved = 0;
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+
+    /**
+     * Creates a recorder.
+     *
+     * @param measureStart The time when the warmup period ends, as given by <code>System.nanoTime()</code>.
+     */
+    LoadRecorder(long measureStart) {
+        this.measureStart = measureStart;
+    }
+
+    /**
+     * Records the outcome of a command.
+     *
+     * @param command The command name, e.g. "RETR".
+     * @param start   The time when the command was sent, as given by <code>System.nanoTime()</code>.
+     * @param success true if the server gave the expected reply, and false otherwise.
+     * @return true if the command was recorded, or false if it was started during the warmup period.
+     */
+    boolean record(String command, long start, boolean success) {
+        long end = System.nanoTime();
+        if (start < measureStart)
+            return false;
+        if (success)
+            latencies.computeIfAbsent(command, name -> new LatencyHistogram()).record(end - start);
+        else
+            errors.merge(command, 1L, Long::sum);
+        return true;
+    }
+
+    void messageSent(long bytes) {
+        messagesSent++;
+        bytesSent += bytes;
+    }
+
+    void messageRetrieved(long bytes) {
+        messagesRetrieved++;
+        bytesReceived += bytes;
+    }
+
+    /**
+     * Adds the measurements of another recorder to this one.
+     *
+     * @param other The recorder to add, which is not modified.
+     */
+    void add(LoadRecorder other) {
+        other.latencies.forEach((command, histogram) ->
+                latencies.computeIfAbsent(command, name -> new LatencyHistogram()).add(histogram));
+        other.errors.forEach((command, count) -> errors.merge(command, count, Long::sum));
+        messagesSent += other.messagesSent;
+        messagesRetrieved += other.messagesRetrieved;
+        bytesSent += other.bytesSent;
+        bytesReceived += other.bytesReceived;
+    }
+
+    Map<String, LatencyHistogram> getLatencies() {
+        return latencies;
+    }
+
+    long getErrors(String command) {
+        return errors.getOrDefault(command, 0L);
+    }
+
+    Map<String, Long> getErrors() {
+        return errors;
+    }
+
+    long getMessagesSent() {
+        return messagesSent;
+    }
+
+    long getMessagesRetrieved() {
+        return messagesRetrieved;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+}
@@ -0,0 +1,77 @@
+package mailserver.benchmark;
+
+import mailserver.mailbox.MailWriter;
+import mailserver.mailbox.Mailbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery throughput of MailWriter: each operation writes a complete message for a number of recipients and closes
+ * the writer, which flushes the content and publishes the message into every recipient's mailbox. The message is
+ * written either at once or line by line, as a protocol handler receiving it would.
+ * <p>
+ * Deliveries are durable by default, so each operation includes a journal force; run with
+ * <code>-jvmArgsAppend -Dmailserver.journal=false</code> to measure the writes alone, or with
+ * <code>-Dmailserver.delivery=copy</code> to compare the delivery modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailWriterBenchmark {
+
+    @Param({"1", "10", "1000"})
+    public int recipients;
+
+    @Param({"4096"})
+    public int messageSize;
+
+    private List<Mailbox> mailboxes;
+    private char[] message;
+    private String[] lines;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkFixture.prepare();
+        mailboxes = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++)
+            mailboxes.add(new Mailbox(BenchmarkFixture.user(i)));
+        String content = new String(BenchmarkFixture.message(messageSize), StandardCharsets.US_ASCII);
+        message = content.toCharArray();
+        lines = content.split("(?<=\r\n)");
+    }
+
+    @Benchmark
+    public void writeMessage() throws IOException {
+        try (MailWriter writer = new MailWriter(mailboxes)) {
+            writer.write(message);
+            writer.flush();
+        }
+    }
+
+    @Benchmark
+    public void writeLines() throws IOException {
+        try (MailWriter writer = new MailWriter(mailboxes)) {
+            for (String line : lines)
+                writer.write(line);
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package mailserver.benchmark;
+
+import mailserver.mailbox.Mailbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mailbox operations against synthetic mailboxes of increasing size: loading the mailbox at login, from the mailbox
+ * cache and from the index, and delivering a new message with <code>getNewMessageWriter()</code> into a mailbox that
+ * already holds every message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailboxBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int messages;
+
+    @Param({"256"})
+    public int messageSize;
+
+    private String user;
+    private Mailbox mailbox;
+    private char[] message;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkFixture.prepare();
+        user = BenchmarkFixture.user(0);
+        mailbox = BenchmarkFixture.fillMailbox(user, messages, messageSize);
+        message = new String(BenchmarkFixture.message(messageSize), StandardCharsets.US_ASCII).toCharArray();
+    }
+
+    @Benchmark
+    public Mailbox loadMessages() throws Exception {
+        Mailbox loaded = new Mailbox(user);
+        loaded.loadMessages(BenchmarkFixture.PASSWORD);
+        return loaded;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dmailserver.mailboxCacheEntries=0")
+    public Mailbox loadMessagesUncached() throws Exception {
+        Mailbox loaded = new Mailbox(user);
+        loaded.loadMessages(BenchmarkFixture.PASSWORD);
+        return loaded;
+    }
+
+    /**
+     * Delivers a message to the full mailbox. The delivery journal is disabled, so the time is spent creating and
+     * publishing the message file rather than forcing the journal.
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dmailserver.journal=false")
+    public void getNewMessageWriter() throws IOException {
+        try (FileWriter writer = mailbox.getNewMessageWriter()) {
+            writer.write(message);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package mailserver.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A load generator client that polls a mailbox with POP3, as a mail client would: it connects, logs in with USER and
+ * PASS, runs the configured poll pattern (e.g. STAT, LIST, RETR and DELE of every message, and QUIT), and waits for the
+ * poll interval, over and over until the run is over. RETR and DELE apply to every message reported by the last STAT
+ * or LIST, up to a maximum per poll. A pattern without QUIT drops the connection instead, as a client that loses its
+ * connection would. Each command waits for its reply, so every command's latency is measured.
+ */
+class PopLoadClient implements Runnable {
+
+    private final LoadGenerator generator;
+    private final LoadRecorder recorder;
+    private final String[] account;
+
+    PopLoadClient(LoadGenerator generator, LoadRecorder recorder, String[] account) {
+        this.generator = generator;
+        this.recorder = recorder;
+        this.account = account;
+    }
+
+    @Override
+    public void run() {
+        while (!generator.isOver()) {
+            try {
+                poll();
+            } catch (IOException e) {
+                recorder.record("CONNECTION", System.nanoTime(), false);
+                LoadGenerator.pause(100);
+                continue;
+            }
+            LoadGenerator.pause(generator.getPollInterval());
+        }
+    }
+
+    private void poll() throws IOException {
+        long start = System.nanoTime();
+        try (ProtocolClient client = ProtocolClient.connect(generator.getHost(), generator.getPopPort())) {
+            boolean greeted = client.readReply().startsWith("+OK");
+            recorder.record("CONNECT", start, greeted);
+            if (!greeted)
+                return;
+            if (!command(client, "USER", "USER " + account[0] + "\r\n") ||
+                    !command(client, "PASS", "PASS " + account[1] + "\r\n")) {
+                command(client, "QUIT", "QUIT\r\n");
+                return;
+            }
+            int messages = 0;
+            boolean quit = false;
+            List<String> pattern = generator.getPollPattern();
+            for (int i = 0; i < pattern.size() && !generator.isOver(); i++) {
+                String name = pattern.get(i);
+                switch (name) {
+                    case "STAT":
+                        messages = stat(client);
+                        break;
+                    case "LIST":
+                    case "UIDL":
+                        messages = listing(client, name);
+                        break;
+                    case "RETR":
+                        for (int n = 1; n <= Math.min(messages, generator.getRetrMax()) && !generator.isOver(); n++)
+                            retrieve(client, n);
+                        break;
+                    case "DELE":
+                        for (int n = 1; n <= Math.min(messages, generator.getRetrMax()); n++)
+                            command(client, "DELE", "DELE " + n + "\r\n");
+                        break;
+                    default:
+                        command(client, name, name + "\r\n");
+                        quit |= name.equals("QUIT");
+                }
+            }
+            if (!quit && generator.isOver())
+                command(client, "QUIT", "QUIT\r\n");
+        }
+    }
+
+    /**
+     * Sends STAT and returns the number of messages in the maildrop.
+     */
+    private int stat(ProtocolClient client) throws IOException {
+        long start = System.nanoTime();
+        client.send("STAT\r\n");
+        String reply = client.readReply();
+        boolean success = reply.startsWith("+OK");
+        recorder.record("STAT", start, success);
+        return success ? Integer.parseInt(reply.split(" ")[1]) : 0;
+    }
+
+    /**
+     * Sends LIST or UIDL without an argument and returns the number of messages listed.
+     */
+    private int listing(ProtocolClient client, String name) throws IOException {
+        long start = System.nanoTime();
+        client.send(name + "\r\n");
+        if (!client.readReply().startsWith("+OK")) {
+            recorder.record(name, start, false);
+            return 0;
+        }
+        int messages = client.readMultiline();
+        recorder.record(name, start, true);
+        return messages;
+    }
+
+    /**
+     * Retrieves a message with RETR, reading the whole response.
+     */
+    private void retrieve(ProtocolClient client, int message) throws IOException {
+        long start = System.nanoTime();
+        client.send("RETR " + message + "\r\n");
+        if (!client.readReply().startsWith("+OK")) {
+            recorder.record("RETR", start, false);
+            return;
+        }
+        long received = client.getBytesRead();
+        client.readMultiline();
+        if (recorder.record("RETR", start, true))
+            recorder.messageRetrieved(client.getBytesRead() - received);
+    }
+
+    /**
+     * Sends a command and waits for its reply, recording its latency.
+     *
+     * @return true if the reply had the +OK status.
+     */
+    private boolean command(ProtocolClient client, String name, String request) throws IOException {
+        long start = System.nanoTime();
+        client.send(request);
+        boolean success = client.readReply().startsWith("+OK");
+        recorder.record(name, start, success);
+        return success;
+    }
+}
@@ -0,0 +1,142 @@
+package mailserver.benchmark;
+
+import mailserver.net.MyPOPServer;
+import mailserver.net.MySMTPServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end protocol benchmarks over loopback sockets: SMTP DATA transactions and POP3 RETR commands, each sent by a
+ * single client over a persistent connection to servers started in the benchmark process, in the selected connection
+ * mode. The mailbox retrieved from is filled before the benchmark, so after the first pass its messages are served
+ * from the content cache; run with <code>-jvmArgsAppend -Dmailserver.contentCacheBytes=0</code> to read them from the
+ * store every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private static final int RETR_MESSAGES = 100;
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    @Param({"thread", "nio"})
+    public String mode;
+
+    @Param({"4096"})
+    public int messageSize;
+
+    private ProtocolClient smtp;
+    private ProtocolClient pop;
+    private byte[] transaction;
+    private byte[] content;
+    private int nextMessage = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkFixture.prepare();
+        BenchmarkFixture.fillMailbox(BenchmarkFixture.user(1), RETR_MESSAGES, messageSize);
+        int smtpPort = freePort();
+        int popPort = freePort();
+        start("smtp-server", () -> MySMTPServer.main(new String[]{Integer.toString(smtpPort), mode}));
+        start("pop-server", () -> MyPOPServer.main(new String[]{Integer.toString(popPort), mode}));
+
+        smtp = ProtocolClient.connect("127.0.0.1", smtpPort, STARTUP_TIMEOUT);
+        smtp.expect("220");
+        smtp.send("EHLO bench.example\r\n");
+        smtp.expect("250");
+        transaction = ("MAIL FROM:<sender@bench.example>\r\nRCPT TO:<" + BenchmarkFixture.user(0) + ">\r\n" +
+                "DATA\r\n").getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(BenchmarkFixture.message(messageSize));
+        message.write(".\r\n".getBytes(StandardCharsets.US_ASCII));
+        content = message.toByteArray();
+
+        pop = ProtocolClient.connect("127.0.0.1", popPort, STARTUP_TIMEOUT);
+        pop.expect("+OK");
+        pop.send("USER " + BenchmarkFixture.user(1) + "\r\nPASS " + BenchmarkFixture.PASSWORD + "\r\n");
+        pop.expect("+OK");
+        pop.expect("+OK");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        smtp.send("QUIT\r\n");
+        smtp.close();
+        pop.send("QUIT\r\n");
+        pop.close();
+    }
+
+    /**
+     * Sends a message with a complete SMTP transaction: MAIL, RCPT and DATA (pipelined), then the content.
+     */
+    @Benchmark
+    public void smtpData() throws IOException {
+        smtp.send(transaction);
+        smtp.expect("250");
+        smtp.expect("250");
+        smtp.expect("354");
+        smtp.send(content);
+        smtp.expect("250");
+    }
+
+    /**
+     * Retrieves the next message of the mailbox with RETR, reading the whole response.
+     *
+     * @return The number of bytes received.
+     */
+    @Benchmark
+    public long popRetr() throws IOException {
+        nextMessage = nextMessage % RETR_MESSAGES + 1;
+        pop.send("RETR " + nextMessage + "\r\n");
+        pop.expect("+OK");
+        long start = pop.getBytesRead();
+        pop.readMultiline();
+        return pop.getBytesRead() - start;
+    }
+
+    /**
+     * Starts a server on a daemon thread. The servers accept connections until the benchmark process ends.
+     */
+    private static void start(String name, ServerMain server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ServerMain {
+        void run() throws IOException;
+    }
+}
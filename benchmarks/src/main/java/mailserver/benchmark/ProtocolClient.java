@@ -0,0 +1,158 @@
+package mailserver.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal client for the line-oriented SMTP and POP3 protocols, used by the benchmarks and the load generator.
+ * Requests are written as given, and replies are read a line at a time.
+ */
+class ProtocolClient implements Closeable {
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final StringBuilder line = new StringBuilder();
+    private long bytesRead = 0;
+
+    private ProtocolClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.input = new BufferedInputStream(socket.getInputStream());
+        this.output = socket.getOutputStream();
+    }
+
+    /**
+     * Connects to a server.
+     *
+     * @param host The server's host name or address.
+     * @param port The server's port.
+     * @return The connected client.
+     * @throws IOException If the connection cannot be established.
+     */
+    static ProtocolClient connect(String host, int port) throws IOException {
+        return new ProtocolClient(new Socket(host, port));
+    }
+
+    /**
+     * Connects to a server, retrying until it starts listening or the timeout expires.
+     *
+     * @param host    The server's host name or address.
+     * @param port    The server's port.
+     * @param timeout The time to wait for the server, in milliseconds.
+     * @return The connected client.
+     * @throws IOException          If the server is still not listening when the timeout expires.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    static ProtocolClient connect(String host, int port, long timeout) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            try {
+                return connect(host, port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    void send(String request) throws IOException {
+        send(request.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    void send(byte[] request) throws IOException {
+        output.write(request);
+        output.flush();
+    }
+
+    /**
+     * Reads a reply, skipping the continuation lines of a multiline SMTP reply.
+     *
+     * @return The last line of the reply.
+     * @throws IOException If the connection is closed or cannot be read.
+     */
+    String readReply() throws IOException {
+        String reply;
+        do {
+            reply = readLine();
+        } while (reply.length() > 3 && reply.charAt(3) == '-');
+        return reply;
+    }
+
+    /**
+     * Reads a reply and checks its status.
+     *
+     * @param status The expected beginning of the reply, e.g. "250" or "+OK".
+     * @throws IOException If the reply has another status, or if the connection is closed or cannot be read.
+     */
+    void expect(String status) throws IOException {
+        String reply = readReply();
+        if (!reply.startsWith(status))
+            throw new IOException("Expected " + status + " but received: " + reply);
+    }
+
+    /**
+     * Reads the lines of a multiline POP3 response, up to its terminating "." line.
+     *
+     * @return The number of lines read, excluding the terminating line.
+     * @throws IOException If the connection is closed or cannot be read.
+     */
+    int readMultiline() throws IOException {
+        int lines = 0;
+        while (true) {
+            readLineContent();
+            if (line.length() == 1 && line.charAt(0) == '.')
+                return lines;
+            lines++;
+        }
+    }
+
+    /**
+     * Reads a line, without its line terminator (LF or CRLF).
+     *
+     * @return The line.
+     * @throws IOException If the connection is closed or cannot be read.
+     */
+    String readLine() throws IOException {
+        readLineContent();
+        return line.toString();
+    }
+
+    /**
+     * Reads a line into the line buffer, without its line terminator.
+     */
+    private void readLineContent() throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0)
+                throw new EOFException("Connection closed by the server");
+            line.append((char) b);
+        }
+        bytesRead += line.length() + 1;
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r')
+            line.setLength(length - 1);
+    }
+
+    /**
+     * Returns the number of bytes received so far.
+     *
+     * @return The number of bytes read from the server.
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
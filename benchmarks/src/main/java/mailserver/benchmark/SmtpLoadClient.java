@@ -0,0 +1,89 @@
+package mailserver.benchmark;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * A load generator client that sends messages to the SMTP server: it connects, greets the server with EHLO, sends a
+ * number of messages, each with a size and a number of recipients drawn from the configured distributions, and quits,
+ * over and over until the run is over. Each command waits for its reply, so every command's latency is measured.
+ */
+class SmtpLoadClient implements Runnable {
+
+    private final LoadGenerator generator;
+    private final LoadRecorder recorder;
+    private final SplittableRandom random;
+
+    SmtpLoadClient(LoadGenerator generator, LoadRecorder recorder, long seed) {
+        this.generator = generator;
+        this.recorder = recorder;
+        this.random = new SplittableRandom(seed);
+    }
+
+    @Override
+    public void run() {
+        while (!generator.isOver()) {
+            try {
+                session();
+            } catch (IOException e) {
+                recorder.record("CONNECTION", System.nanoTime(), false);
+                LoadGenerator.pause(100);
+            }
+        }
+    }
+
+    private void session() throws IOException {
+        long start = System.nanoTime();
+        try (ProtocolClient client = ProtocolClient.connect(generator.getHost(), generator.getSmtpPort())) {
+            boolean greeted = client.readReply().startsWith("220");
+            recorder.record("CONNECT", start, greeted);
+            if (!greeted)
+                return;
+            command(client, "EHLO", "EHLO loadgen.example\r\n", "250");
+            for (int i = 0; i < generator.getMessagesPerSession() && !generator.isOver(); i++)
+                transaction(client);
+            command(client, "QUIT", "QUIT\r\n", "221");
+        }
+    }
+
+    /**
+     * Sends a message: MAIL, one RCPT per recipient, DATA, and the content.
+     */
+    private void transaction(ProtocolClient client) throws IOException {
+        if (!command(client, "MAIL", "MAIL FROM:<loadgen@bench.example>\r\n", "250"))
+            return;
+        int recipients = Math.min(generator.getRecipients().sample(random), generator.getAccounts().size());
+        int first = random.nextInt(generator.getAccounts().size());
+        int accepted = 0;
+        for (int i = 0; i < recipients; i++) {
+            String address = generator.getAccounts().get((first + i) % generator.getAccounts().size())[0];
+            if (command(client, "RCPT", "RCPT TO:<" + address + ">\r\n", "250"))
+                accepted++;
+        }
+        if (accepted == 0) {
+            command(client, "RSET", "RSET\r\n", "250");
+            return;
+        }
+        if (!command(client, "DATA", "DATA\r\n", "354"))
+            return;
+        byte[] content = generator.getMessage(generator.getMessageSizes().sample(random));
+        long start = System.nanoTime();
+        client.send(content);
+        boolean success = client.readReply().startsWith("250");
+        if (recorder.record("MESSAGE", start, success) && success)
+            recorder.messageSent(content.length);
+    }
+
+    /**
+     * Sends a command and waits for its reply, recording its latency.
+     *
+     * @return true if the reply had the expected status.
+     */
+    private boolean command(ProtocolClient client, String name, String request, String status) throws IOException {
+        long start = System.nanoTime();
+        client.send(request);
+        boolean success = client.readReply().startsWith(status);
+        recorder.record(name, start, success);
+        return success;
+    }
+}
@@ -0,0 +1,218 @@
+package mailserver.log;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ring buffer behind the log, and the thread that writes it out. Any number of threads add entries: each claims
+ * the next sequence number with a compare-and-set, fills the slot it maps to, and publishes it by setting the slot's
+ * sequence. The writer thread takes the published entries in order, formats a batch of them into the output, and
+ * flushes it once per batch, so a burst of entries costs a single write.
+ * <p>
+ * Slots are allocated once and reused, so adding an entry does not allocate. The writer sleeps while the buffer is
+ * empty, and is woken up by the first entry added.
+ */
+class AsyncLogWriter implements Runnable {
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_NANOS = 100_000_000;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final int debugSample;
+    private final AtomicLong next = new AtomicLong();
+    private volatile long consumed = 0;
+    private volatile boolean sleeping = false;
+    private final AtomicLong debugCount = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Thread thread;
+
+    /**
+     * Creates the buffer and starts the writer thread.
+     *
+     * @param size        The minimum number of entries the buffer holds; rounded up to a power of two.
+     * @param debugSample Once the buffer is half full, one in this many debug entries is kept.
+     * @param out         The stream where debug and info entries are written.
+     * @param err         The stream where warnings and errors are written, which may be the same as <code>out</code>.
+     */
+    AsyncLogWriter(int size, int debugSample, OutputStream out, OutputStream err) {
+        int capacity = Integer.highestOneBit(Math.max(16, size - 1)) << 1;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++)
+            slots[i] = new Slot(i - capacity);
+        this.mask = capacity - 1;
+        this.debugSample = debugSample;
+        this.out = new PrintStream(new BufferedOutputStream(out, 64 * 1024), false, Charset.defaultCharset());
+        this.err = err == out ? this.out :
+                new PrintStream(new BufferedOutputStream(err, 16 * 1024), false, Charset.defaultCharset());
+        this.thread = new Thread(this, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        // Write whatever is still queued when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-flush"));
+    }
+
+    /**
+     * Adds an entry, or drops it if the buffer is too full for its level: debug entries are sampled once the buffer
+     * is half full, and debug and info entries are dropped once it is full. Warnings and errors wait for room.
+     *
+     * @return true if the entry was added, and false if it was dropped.
+     */
+    boolean offer(Log.Level level, String message, Object arg1, Object arg2, Throwable error) {
+        long sequence;
+        while (true) {
+            sequence = next.get();
+            long used = sequence - consumed;
+            if (used >= slots.length) {
+                if (level.compareTo(Log.Level.WARN) < 0) {
+                    dropped.increment();
+                    return false;
+                }
+                wakeWriter();
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            if (level == Log.Level.DEBUG && used >= slots.length / 2 &&
+                    debugCount.incrementAndGet() % debugSample != 0) {
+                dropped.increment();
+                return false;
+            }
+            if (next.compareAndSet(sequence, sequence + 1))
+                break;
+        }
+        Slot slot = slots[(int) sequence & mask];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.message = message;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.error = error;
+        slot.sequence = sequence;
+        if (sleeping)
+            wakeWriter();
+        return true;
+    }
+
+    private void wakeWriter() {
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            if (writeBatch() > 0)
+                continue;
+            sleeping = true;
+            // Check again, as an entry may have been published before the flag was seen
+            if (slots[(int) consumed & mask].sequence != consumed)
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Writes all the entries published so far. Called by the shutdown hook; the writer thread may still be running,
+     * so batches are only written while holding the writer's lock.
+     */
+    private synchronized void drain() {
+        while (writeBatch() > 0) {
+            // Keep writing until the buffer is empty
+        }
+    }
+
+    /**
+     * Writes up to a batch of published entries, in order, and flushes the output.
+     *
+     * @return The number of entries written.
+     */
+    private synchronized int writeBatch() {
+        int count = 0;
+        boolean wroteErr = false;
+        StringBuilder line = new StringBuilder(256);
+        while (count < BATCH_SIZE) {
+            long sequence = consumed;
+            Slot slot = slots[(int) sequence & mask];
+            if (slot.sequence != sequence)
+                break;
+            PrintStream stream = slot.level.compareTo(Log.Level.WARN) >= 0 ? err : out;
+            line.setLength(0);
+            format(line, slot);
+            stream.println(line);
+            if (slot.error != null)
+                slot.error.printStackTrace(stream);
+            wroteErr |= stream == err;
+            slot.clear();
+            consumed = sequence + 1;
+            count++;
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            err.println(Instant.ofEpochMilli(System.currentTimeMillis()) + " WARN  " + lost +
+                    " log entries dropped, as the log could not keep up");
+            wroteErr = true;
+        }
+        if (count > 0)
+            out.flush();
+        if (wroteErr && err != out)
+            err.flush();
+        return count;
+    }
+
+    /**
+     * Formats an entry as its timestamp, level and message, with each <code>{}</code> of the message replaced by the
+     * next argument. Line terminators at the end of the message (e.g., of a logged response) are left out.
+     */
+    private static void format(StringBuilder line, Slot slot) {
+        line.append(Instant.ofEpochMilli(slot.time)).append(' ').append(slot.level);
+        for (int i = slot.level.name().length(); i < 6; i++)
+            line.append(' ');
+        String message = slot.message;
+        int argument = 0;
+        int start = 0;
+        for (int i = message.indexOf("{}"); i >= 0; i = message.indexOf("{}", start)) {
+            line.append(message, start, i).append(argument == 0 ? slot.arg1 : slot.arg2);
+            argument++;
+            start = i + 2;
+        }
+        line.append(message, start, message.length());
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r'))
+            end--;
+        line.setLength(end);
+    }
+
+    /**
+     * A reusable entry of the ring buffer. The entry is published by setting its sequence number, after all the other
+     * fields, so the writer sees them complete.
+     */
+    private static class Slot {
+
+        volatile long sequence;
+        long time;
+        Log.Level level;
+        String message;
+        Object arg1;
+        Object arg2;
+        Throwable error;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void clear() {
+            message = null;
+            arg1 = null;
+            arg2 = null;
+            error = null;
+        }
+    }
+}
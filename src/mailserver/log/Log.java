@@ -0,0 +1,151 @@
+package mailserver.log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The servers' log. Entries are queued in a ring buffer and written in batches by a background thread, so logging
+ * from a session only takes a slot in the buffer: the calling thread never waits for the output or for a lock, and
+ * the message is only formatted by the writer thread. Messages are templates where each <code>{}</code> is replaced by
+ * the next argument, so a caller passing existing objects (e.g., a channel's address) does not allocate anything.
+ * <p>
+ * The log is configured with system properties:
+ * <ul>
+ * <li><code>mailserver.logLevel</code>: the lowest level logged, <code>debug</code>, <code>info</code> (the default),
+ * <code>warn</code> or <code>error</code>.</li>
+ * <li><code>mailserver.logFile</code>: the file where all entries are appended. By default, warnings and errors are
+ * written to the standard error and the other entries to the standard output.</li>
+ * <li><code>mailserver.logBufferSize</code>: the number of entries the buffer holds (8192 by default).</li>
+ * <li><code>mailserver.logDebugSample</code>: once the buffer is half full, only one in this many debug entries is
+ * kept (100 by default); the others are dropped, and all of them are dropped once the buffer is full.</li>
+ * <li><code>mailserver.protocolLog</code>: the sessions whose requests and responses are logged, either
+ * <code>all</code>, or a comma-separated list of client addresses. None by default.</li>
+ * </ul>
+ * If the writer cannot keep up, info entries are dropped once the buffer is full, while warnings and errors wait for
+ * room. The number of entries dropped is reported in the log.
+ */
+public final class Log {
+
+    /**
+     * Severity of a log entry.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    public static final Level LEVEL = Level.valueOf(System.getProperty("mailserver.logLevel", "info").toUpperCase());
+    public static final int BUFFER_SIZE = Integer.getInteger("mailserver.logBufferSize", 8192);
+    public static final int DEBUG_SAMPLE = Math.max(1, Integer.getInteger("mailserver.logDebugSample", 100));
+
+    private static final String PROTOCOL_LOG = System.getProperty("mailserver.protocolLog", "").trim();
+    private static final Set<String> PROTOCOL_LOG_ADDRESSES = Arrays.stream(PROTOCOL_LOG.split(","))
+            .map(String::trim).filter(address -> !address.isEmpty()).collect(Collectors.toSet());
+
+    private static final AsyncLogWriter writer = createWriter();
+
+    private Log() {
+    }
+
+    private static AsyncLogWriter createWriter() {
+        OutputStream out = System.out;
+        OutputStream err = System.err;
+        String file = System.getProperty("mailserver.logFile");
+        if (file != null) {
+            try {
+                out = err = new FileOutputStream(file, true);
+            } catch (IOException e) {
+                System.err.println("Error opening the log file " + file + ", logging to the console instead.");
+                e.printStackTrace();
+            }
+        }
+        return new AsyncLogWriter(BUFFER_SIZE, DEBUG_SAMPLE, out, err);
+    }
+
+    /**
+     * Returns true if entries of a level are logged, so a caller can skip preparing the arguments of an entry that
+     * would be discarded.
+     *
+     * @param level The level of the entry.
+     * @return true if the entry would be logged, and false otherwise.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * Returns true if the requests and responses of a client's sessions should be logged, according to
+     * <code>mailserver.protocolLog</code>.
+     *
+     * @param client The client's address, or null if it is not known.
+     * @return true if the client's protocol exchanges are logged, and false otherwise.
+     */
+    public static boolean isProtocolLogged(InetAddress client) {
+        if (PROTOCOL_LOG.equalsIgnoreCase("all"))
+            return true;
+        return client != null && !PROTOCOL_LOG_ADDRESSES.isEmpty() &&
+                PROTOCOL_LOG_ADDRESSES.contains(client.getHostAddress());
+    }
+
+    public static void debug(String message, Object arg) {
+        log(Level.DEBUG, message, arg, null, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null, null, null);
+    }
+
+    public static void info(String message, Object arg) {
+        log(Level.INFO, message, arg, null, null);
+    }
+
+    public static void info(String message, Object arg1, Object arg2) {
+        log(Level.INFO, message, arg1, arg2, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null, null);
+    }
+
+    public static void warn(String message, Object arg) {
+        log(Level.WARN, message, arg, null, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, null, null, error);
+    }
+
+    public static void error(String message, Object arg, Throwable error) {
+        log(Level.ERROR, message, arg, null, error);
+    }
+
+    /**
+     * Logs a protocol exchange of a session whose protocol logging is enabled. Protocol entries are debug entries, so
+     * they are sampled or dropped under backpressure, but they are logged whatever the log level.
+     *
+     * @param message The message template.
+     * @param session The name of the session.
+     * @param arg     The exchanged request or response.
+     */
+    public static void protocol(String message, Object session, Object arg) {
+        writer.offer(Level.DEBUG, message, session, arg, null);
+    }
+
+    /**
+     * Queues an entry, if its level is logged.
+     *
+     * @param level   The level of the entry.
+     * @param message The message template, where each <code>{}</code> is replaced by the next argument.
+     * @param arg1    The first argument, or null.
+     * @param arg2    The second argument, or null.
+     * @param error   An exception whose stack trace is logged after the message, or null.
+     */
+    public static void log(Level level, String message, Object arg1, Object arg2, Throwable error) {
+        if (isEnabled(level))
+            writer.offer(level, message, arg1, arg2, error);
+    }
+}
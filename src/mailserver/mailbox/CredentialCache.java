@@ -0,0 +1,144 @@
+package mailserver.mailbox;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of recent successful password verifications, so clients that log in repeatedly (e.g., polling every minute)
+ * do not pay for the full key derivation every time. Entries are keyed by user and by a keyed digest of the supplied
+ * password, so the cache never holds the passwords themselves, and remember which credential they were verified
+ * against, so a password change in the users database takes effect immediately.
+ * <p>
+ * The cache holds at most <code>mailserver.credentialCacheSize</code> entries (10000 by default), evicting the least
+ * recently used one, and each entry expires <code>mailserver.credentialCacheTtl</code> milliseconds (five minutes by
+ * default) after the verification.
+ */
+public class CredentialCache {
+
+    public static final int MAX_ENTRIES = Integer.getInteger("mailserver.credentialCacheSize", 10000);
+    public static final long TIME_TO_LIVE = Long.getLong("mailserver.credentialCacheTtl", 5 * 60 * 1000);
+
+    private static final CredentialCache instance = new CredentialCache(MAX_ENTRIES, TIME_TO_LIVE);
+
+    private final long timeToLive;
+    private final Map<String, Verification> entries;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SecretKeySpec digestKey;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new, empty cache.
+     *
+     * @param maxEntries Maximum number of verifications kept.
+     * @param timeToLive Time, in milliseconds, after which a verification must be repeated.
+     */
+    public CredentialCache(int maxEntries, long timeToLive) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verification> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        // Digests are keyed with a random per-process key, so they cannot be matched against precomputed tables
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.digestKey = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    /**
+     * Returns the cache shared by the whole process.
+     *
+     * @return The shared credential cache.
+     */
+    public static CredentialCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Verifies a user's password against a credential, using a previous successful verification if there is a recent
+     * one for the same user, password and credential. Plain-text credentials are checked directly.
+     *
+     * @param user       The user's address, as stored in the users database.
+     * @param credential The credential from the users database.
+     * @param password   The password supplied by the user, unencrypted.
+     * @return true if the password matches the credential, and false otherwise.
+     */
+    public boolean verify(String user, String credential, String password) {
+        if (!Credentials.isHashed(credential))
+            return Credentials.verify(credential, password); // cheap enough, no need to cache
+        String key = user + ":" + digest(password);
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            Verification verification = entries.get(key);
+            if (verification != null && verification.expiresAt > now && verification.credential.equals(credential)) {
+                hits.increment();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+        if (!Credentials.verify(credential, password))
+            return false;
+        lock.lock();
+        try {
+            entries.put(key, new Verification(credential, now + timeToLive));
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of verifications answered from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of verifications that required the full key derivation.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private String digest(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(digestKey);
+            return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available in this runtime.", e);
+        }
+    }
+
+    /**
+     * A successful verification, valid until it expires or the credential changes.
+     */
+    private static class Verification {
+
+        private final String credential;
+        private final long expiresAt;
+
+        Verification(String credential, long expiresAt) {
+            this.credential = credential;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package mailserver.mailbox;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Password credentials stored in the users database. A credential is either a plain-text password (the original
+ * format) or a salted PBKDF2 hash in the format <code>pbkdf2-sha256$iterations$salt$hash</code>, with the salt and the
+ * hash encoded in Base64. Hashed credentials can be generated by running this class with the password as argument.
+ */
+public class Credentials {
+
+    public static final String HASH_PREFIX = "pbkdf2-sha256$";
+    public static final int DEFAULT_ITERATIONS = 210000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Creates a hashed credential for a password, with a new random salt.
+     *
+     * @param password The password, unencrypted.
+     * @return The credential, in the format stored in the users database.
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return HASH_PREFIX + DEFAULT_ITERATIONS + "$" + encoder.encodeToString(salt) + "$" +
+                encoder.encodeToString(deriveKey(password, salt, DEFAULT_ITERATIONS, HASH_LENGTH));
+    }
+
+    /**
+     * Checks if a credential is hashed, and so expensive to verify.
+     *
+     * @param credential The credential from the users database.
+     * @return true if the credential is a hash, and false if it is a plain-text password.
+     */
+    public static boolean isHashed(String credential) {
+        return credential.startsWith(HASH_PREFIX);
+    }
+
+    /**
+     * Verifies a password against a credential. For hashed credentials this runs the full key derivation, which is
+     * deliberately slow; callers should use a CredentialCache to avoid repeating it for the same password.
+     *
+     * @param credential The credential from the users database.
+     * @param password   The password supplied by the user, unencrypted.
+     * @return true if the password matches the credential, and false otherwise (including for malformed hashes).
+     */
+    public static boolean verify(String credential, String password) {
+        if (!isHashed(credential))
+            return MessageDigest.isEqual(credential.getBytes(StandardCharsets.UTF_8),
+                    password.getBytes(StandardCharsets.UTF_8));
+        String[] parts = credential.substring(HASH_PREFIX.length()).split("\\$");
+        if (parts.length != 3)
+            return false;
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            return MessageDigest.isEqual(expected, deriveKey(password, salt, iterations, expected.length));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] deriveKey(String password, byte[] salt, int iterations, int length) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available in this runtime.", e);
+        }
+    }
+
+    /**
+     * Prints the hashed credential for a password, to be copied into the users database.
+     *
+     * @param args The command-line arguments: the password.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            throw new RuntimeException("This application must be executed with exactly one argument, the password.");
+        }
+        System.out.println(hash(args[0]));
+    }
+}
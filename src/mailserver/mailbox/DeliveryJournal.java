@@ -0,0 +1,592 @@
+package mailserver.mailbox;
+
+import mailserver.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal that makes message deliveries durable without forcing every message file to disk. Before a
+ * message is published into its recipients' mailboxes, its content and the list of recipients are appended to the
+ * journal, and the delivery only completes once the journal is forced to disk. Deliveries completed at the same time
+ * by different sessions share a single force (group commit): while one session forces the journal, the others append
+ * their records and wait, and the next force covers all of them. Only the space of a record, and its header, are
+ * reserved while holding the journal's lock; the content is copied afterwards, so sessions append their messages
+ * in parallel.
+ * <p>
+ * The published message files themselves are only forced when the journal is checkpointed by a background thread,
+ * once it grows beyond <code>mailserver.journalCheckpointSize</code> bytes (16 MiB by default), after which the
+ * journal is emptied. If the process stops before that, the next process replays the journal on startup, restoring
+ * any message whose stored copy was lost or does not match the journal, so an acknowledged message is never lost,
+ * although in rare cases a message deleted just before a crash may be delivered again. The journal can be disabled
+ * with <code>-Dmailserver.journal=false</code>, in which case deliveries are not forced to disk at all.
+ */
+public class DeliveryJournal {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("mailserver.journal", "true"));
+    public static final long CHECKPOINT_SIZE = Long.getLong("mailserver.journalCheckpointSize", 16 * 1024 * 1024);
+    public static final File JOURNAL_FILE = new File(Mailbox.USER_MAIL_BASE_DIRECTORY, ".journal");
+
+    private static final int RECORD_MAGIC = 0x444A524E; // "DJRN"
+    private static final int SKIPPED_MAGIC = 0x444A534B; // "DJSK", a record whose content could not be written
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int MAX_RECIPIENTS_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final DeliveryJournal instance = new DeliveryJournal(JOURNAL_FILE);
+
+    private final File journalFile;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Queue<ByteBuffer> copyBuffers = new ConcurrentLinkedQueue<>();
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "journal-checkpointer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<File> unsyncedFiles = new LinkedHashSet<>();
+    private FileChannel channel;
+    private long end = 0;
+    private long appended = 0;
+    private long forced = 0;
+    private boolean forcing = false;
+    private int inFlight = 0;
+    private boolean checkpointScheduled = false;
+    private boolean checkpointing = false;
+
+    /**
+     * Creates a journal object for a journal file. The file is only opened, and replayed, when first used.
+     *
+     * @param journalFile The journal file.
+     */
+    private DeliveryJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Returns the journal shared by the whole process.
+     *
+     * @return The delivery journal of the mail store.
+     */
+    public static DeliveryJournal getInstance() {
+        return instance;
+    }
+
+    /**
+     * Opens the journal and replays any deliveries left in it by a previous process that did not complete its last
+     * checkpoint. Should be called by a server that delivers messages before it accepts any connections, so messages
+     * are restored before new ids are allocated. Does nothing if the journal is disabled or already open.
+     *
+     * @throws IOException If the journal cannot be opened, is used by another process, or cannot be replayed.
+     */
+    public void recover() throws IOException {
+        if (!ENABLED)
+            return;
+        lock.lock();
+        try {
+            open();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers a message durably: records the content and recipients in the journal, waits until the record is forced
+     * to disk (together with any other records appended in the meantime), and then publishes the message. If the
+     * journal is disabled, the message is published right away.
+     *
+     * @param content     The file with the complete message content, which is not modified.
+     * @param size        The size of the message, in bytes.
+     * @param recipients  The mailboxes the message is published into.
+     * @param ids         The message id in each mailbox, in the same order.
+     * @param publication The operation that publishes the message, returning the files it created.
+     * @throws IOException If the delivery cannot be recorded or the message cannot be published.
+     */
+    void deliver(Path content, long size, List<Mailbox> recipients, long[] ids, Publication publication)
+            throws IOException {
+        if (!ENABLED) {
+            publication.publish();
+            return;
+        }
+        long sequence = append(content, size, recipients, ids);
+        List<File> published = null;
+        try {
+            awaitForced(sequence);
+            published = publication.publish();
+        } finally {
+            complete(published);
+        }
+    }
+
+    /**
+     * Appends a delivery record to the journal, without forcing it. The record's space is reserved and its header
+     * written while holding the lock, so a record whose content is never completed can be skipped on replay; the
+     * content and checksum are then written without the lock, at the reserved position.
+     *
+     * @return The sequence number of the record, assigned once it is completely written.
+     */
+    private long append(Path content, long size, List<Mailbox> recipients, long[] ids) throws IOException {
+        ByteBuffer header = encodeHeader(size, recipients, ids);
+        long start;
+        lock.lock();
+        try {
+            open();
+            while (checkpointing)
+                changed.awaitUninterruptibly();
+            start = end;
+            writeFully(header.duplicate(), start);
+            end = start + header.limit() + size + 8;
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        ByteBuffer buffer = copyBuffers.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        try {
+            CRC32C checksum = new CRC32C();
+            checksum.update(header);
+            long position = start + header.limit();
+            try (FileChannel source = FileChannel.open(content, StandardOpenOption.READ)) {
+                long copied = 0;
+                while (copied < size) {
+                    buffer.clear();
+                    if (size - copied < buffer.capacity())
+                        buffer.limit((int) (size - copied));
+                    if (source.read(buffer, copied) < 0)
+                        throw new IOException("Message file is shorter than expected: " + content);
+                    buffer.flip();
+                    copied += buffer.remaining();
+                    checksum.update(buffer.duplicate());
+                    position = writeFully(buffer, position);
+                }
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(8).putLong(checksum.getValue());
+            trailer.flip();
+            writeFully(trailer, position);
+        } catch (IOException | RuntimeException e) {
+            skip(start);
+            throw e;
+        } finally {
+            copyBuffers.offer(buffer);
+        }
+        lock.lock();
+        try {
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a record whose content could not be written as skipped, so it is never replayed, and records that its
+     * delivery is over. The record keeps its space, as later records may already follow it.
+     */
+    private void skip(long start) {
+        try {
+            writeFully(ByteBuffer.allocate(4).putInt(SKIPPED_MAGIC).flip(), start);
+        } catch (IOException e) {
+            // The record is still skipped on replay, as its checksum does not match
+        }
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a record is forced to disk. If no other session is forcing the journal, this session forces it,
+     * covering every record appended so far; otherwise it waits for the force in progress, and then checks again.
+     */
+    private void awaitForced(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (forced < sequence) {
+                if (forcing) {
+                    changed.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                long target = appended;
+                boolean success = false;
+                lock.unlock();
+                try {
+                    channel.force(false);
+                    success = true;
+                } finally {
+                    lock.lock();
+                    forcing = false;
+                    if (success)
+                        forced = Math.max(forced, target);
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a delivery is complete, and schedules a checkpoint of the journal if it is large enough.
+     *
+     * @param published The message files published by the delivery, or null if it failed.
+     */
+    private void complete(List<File> published) {
+        lock.lock();
+        try {
+            if (published != null)
+                unsyncedFiles.addAll(published);
+            inFlight--;
+            changed.signalAll();
+            if (checkpointScheduled || end < CHECKPOINT_SIZE)
+                return;
+            checkpointScheduled = true;
+            checkpointer.execute(this::checkpoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces every message file published since the last checkpoint, and their directories, to disk, and then empties
+     * the journal, whose records are no longer needed. Runs on the checkpoint thread. The files published so far are
+     * forced while deliveries go on; new deliveries only wait while the deliveries in progress complete and the few
+     * files they published are forced, before the journal is emptied.
+     */
+    private void checkpoint() {
+        Set<File> files;
+        lock.lock();
+        try {
+            files = new LinkedHashSet<>(unsyncedFiles);
+            unsyncedFiles.clear();
+        } finally {
+            lock.unlock();
+        }
+        boolean success = false;
+        try {
+            forceFiles(files);
+            lock.lock();
+            try {
+                checkpointing = true;
+                while (inFlight > 0)
+                    changed.awaitUninterruptibly();
+                forceFiles(unsyncedFiles);
+                unsyncedFiles.clear();
+                channel.truncate(0);
+                channel.force(true);
+                end = 0;
+                success = true;
+            } finally {
+                checkpointing = false;
+                changed.signalAll();
+                lock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            // The deliveries themselves are complete; the journal is kept, and checkpointed after a later delivery
+            Log.error("Error checkpointing the delivery journal.", e);
+        } finally {
+            lock.lock();
+            try {
+                if (!success)
+                    unsyncedFiles.addAll(files);
+                checkpointScheduled = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forces a set of message files, and their directories, to disk.
+     */
+    private static void forceFiles(Set<File> files) throws IOException {
+        Set<File> directories = new HashSet<>();
+        for (File file : files) {
+            try (FileChannel published = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                published.force(false);
+            } catch (NoSuchFileException e) {
+                // Already deleted, nothing to keep
+            }
+            directories.add(file.getParentFile());
+        }
+        for (File directory : directories)
+            forceDirectory(directory);
+    }
+
+    /**
+     * Opens the journal, if it is not open yet, and replays it. Must be called while holding the lock.
+     */
+    private void open() throws IOException {
+        if (channel != null)
+            return;
+        //noinspection ResultOfMethodCallIgnored
+        journalFile.getParentFile().mkdirs();
+        FileChannel opened = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock fileLock = opened.tryLock();
+            if (fileLock == null)
+                throw new IOException("The delivery journal is in use by another process: " + journalFile);
+            replay(opened);
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            throw e;
+        }
+        channel = opened; // the file lock is held until the process exits
+    }
+
+    /**
+     * Restores the messages recorded in the journal whose stored copy is missing or damaged. Records that were skipped,
+     * or whose content is incomplete or damaged, were never acknowledged and are passed over; replay stops at the first
+     * record without a valid header, after which nothing was appended. Once the restored files are forced to disk, the
+     * journal is emptied.
+     */
+    private void replay(FileChannel journal) throws IOException {
+        long size = journal.size();
+        long position = 0;
+        Set<File> restored = new LinkedHashSet<>();
+        Map<File, Map<Long, MailboxIndex.Entry>> listings = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        ByteBuffer stored = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        while (true) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(journal, header, position);
+            long recordEnd = findRecordEnd(header, position, size);
+            if (recordEnd < 0)
+                break;
+            header.rewind();
+            int magic = header.getInt();
+            int recipientsSize = header.getInt();
+            long contentSize = header.getLong();
+            if (magic == RECORD_MAGIC && verifyChecksum(journal, position, recordEnd - 8, buffer)) {
+                ByteBuffer recipients = ByteBuffer.allocate(recipientsSize);
+                readFully(journal, recipients, position + RECORD_HEADER_SIZE);
+                long contentPosition = position + RECORD_HEADER_SIZE + recipientsSize;
+                int count = recipients.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] user = new byte[recipients.getShort()];
+                    recipients.get(user);
+                    long id = recipients.getLong();
+                    File mailDirectory = new File(Mailbox.USER_MAIL_BASE_DIRECTORY,
+                            new String(user, StandardCharsets.UTF_8));
+                    File restoredFile = restore(journal, contentPosition, contentSize, mailDirectory, id,
+                            listings, buffer, stored);
+                    if (restoredFile != null)
+                        restored.add(restoredFile);
+                }
+            }
+            position = recordEnd;
+        }
+        forceFiles(restored);
+        journal.truncate(0);
+        journal.force(true);
+    }
+
+    /**
+     * Restores a message from the journal into a mailbox, unless its stored copy is complete. A message that is not
+     * listed in the mailbox is published again, unless it was published and deleted since; a message that is listed,
+     * but whose stored copy does not match the journal (e.g., its file was renamed into place but its content never
+     * reached the disk), is rewritten in place.
+     *
+     * @return The file that holds the restored message, or null if it did not need to be restored.
+     */
+    private File restore(FileChannel journal, long position, long size, File mailDirectory, long id,
+                         Map<File, Map<Long, MailboxIndex.Entry>> listings, ByteBuffer buffer, ByteBuffer stored)
+            throws IOException {
+        MessageStore store = MessageStore.forDirectory(mailDirectory);
+        Map<Long, MailboxIndex.Entry> listing = listings.get(mailDirectory);
+        if (listing == null) {
+            listing = new HashMap<>();
+            if (mailDirectory.isDirectory()) {
+                for (MailboxIndex.Entry entry : store.list())
+                    listing.put(entry.getId(), entry);
+            }
+            listings.put(mailDirectory, listing);
+        }
+        MailboxIndex.Entry entry = listing.get(id);
+        if (entry == null && store.contains(id)) {
+            // Deleted since it was published, unless it is in its own file that is not listed yet
+            entry = new MailboxIndex.Entry(id, size, -1, 0, -1);
+            if (!store.locate(entry).exists())
+                return null;
+        }
+        if (entry != null && matches(store, entry, journal, position, size, buffer, stored))
+            return null;
+        //noinspection ResultOfMethodCallIgnored
+        mailDirectory.mkdirs();
+        Path temp = new File(mailDirectory, id + Mailbox.TEMP_FILE_SUFFIX).toPath();
+        try (FileChannel output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long copied = 0;
+            while (copied < size)
+                copied += journal.transferTo(position + copied, size - copied, output);
+        }
+        if (entry != null)
+            return store.repair(entry, temp);
+        return store.publish(temp, id, size, MessageHeaders.find(temp, size), true);
+    }
+
+    /**
+     * Checks that the stored copy of a message has the same content as the journal.
+     */
+    private boolean matches(MessageStore store, MailboxIndex.Entry entry, FileChannel journal, long position,
+                            long size, ByteBuffer buffer, ByteBuffer stored) throws IOException {
+        if (entry.getSize() != size)
+            return false;
+        try (FileChannel message = store.open(entry)) {
+            if (message.size() < entry.getOffset() + size)
+                return false;
+            for (long compared = 0; compared < size; ) {
+                int length = (int) Math.min(COPY_BUFFER_SIZE, size - compared);
+                buffer.clear().limit(length);
+                readFully(journal, buffer, position + compared);
+                stored.clear().limit(length);
+                readFully(message, stored, entry.getOffset() + compared);
+                if (stored.remaining() != length || !stored.equals(buffer))
+                    return false;
+                compared += length;
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks that a record header was read from a position of the journal, and that the whole record fits in the
+     * journal.
+     *
+     * @return The position where the record ends, or -1 if there is no valid record header.
+     */
+    private static long findRecordEnd(ByteBuffer header, long position, long size) {
+        if (header.remaining() < RECORD_HEADER_SIZE)
+            return -1;
+        int magic = header.getInt();
+        int recipientsSize = header.getInt();
+        long contentSize = header.getLong();
+        if ((magic != RECORD_MAGIC && magic != SKIPPED_MAGIC) || recipientsSize < 4 ||
+                recipientsSize > MAX_RECIPIENTS_SIZE || contentSize < 0 ||
+                contentSize > size - position - RECORD_HEADER_SIZE - recipientsSize - 8)
+            return -1;
+        return position + RECORD_HEADER_SIZE + recipientsSize + contentSize + 8;
+    }
+
+    /**
+     * Checks that the checksum at the end of a record matches its header and content.
+     *
+     * @param end The position where the checksum starts.
+     */
+    private static boolean verifyChecksum(FileChannel journal, long position, long end, ByteBuffer buffer)
+            throws IOException {
+        CRC32C checksum = new CRC32C();
+        for (long current = position; current < end; ) {
+            buffer.clear();
+            if (end - current < buffer.capacity())
+                buffer.limit((int) (end - current));
+            int read = journal.read(buffer, current);
+            if (read <= 0)
+                return false;
+            buffer.flip();
+            checksum.update(buffer);
+            current += read;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        readFully(journal, trailer, end);
+        return trailer.limit() == 8 && trailer.getLong() == checksum.getValue();
+    }
+
+    /**
+     * Encodes the fixed header of a record (magic, size of the recipient list and size of the content) followed by the
+     * recipient list (number of recipients, and each recipient's user name and message id).
+     */
+    private static ByteBuffer encodeHeader(long size, List<Mailbox> recipients, long[] ids) throws IOException {
+        List<byte[]> users = new ArrayList<>();
+        int recipientsSize = 4;
+        for (Mailbox recipient : recipients) {
+            byte[] user = recipient.getUsername().getBytes(StandardCharsets.UTF_8);
+            users.add(user);
+            recipientsSize += 2 + user.length + 8;
+        }
+        if (recipientsSize > MAX_RECIPIENTS_SIZE)
+            throw new IOException("Too many recipients to record in the delivery journal.");
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + recipientsSize);
+        header.putInt(RECORD_MAGIC).putInt(recipientsSize).putLong(size).putInt(users.size());
+        for (int i = 0; i < users.size(); i++)
+            header.putShort((short) users.get(i).length).put(users.get(i)).putLong(ids[i]);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Writes the whole content of a buffer at a position of the journal.
+     *
+     * @return The position after the written content.
+     */
+    private long writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return position;
+    }
+
+    /**
+     * Fills a buffer with the content of the journal from a position, and flips the buffer.
+     */
+    private static void readFully(FileChannel journal, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = journal.read(buffer, position + buffer.position());
+            if (read <= 0)
+                break;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Forces a directory to disk, so the names of the files created in it are durable. Not every platform allows
+     * directories to be opened, in which case nothing is done.
+     */
+    private static void forceDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform
+        }
+    }
+
+    /**
+     * The operation that publishes a message into its recipients' mailboxes once its delivery is durable.
+     */
+    @FunctionalInterface
+    interface Publication {
+        /**
+         * Publishes the message.
+         *
+         * @return The message files created.
+         * @throws IOException If the message cannot be published.
+         */
+        List<File> publish() throws IOException;
+    }
+}
@@ -0,0 +1,241 @@
+package mailserver.mailbox;
+
+import mailserver.log.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Message store that keeps each message in its own file, named after the message id, in the user's mail directory.
+ * Staging files are renamed into place, and shared content (e.g., a message for several recipients) is hard-linked,
+ * or copied if the file system does not support hard links.
+ */
+public class FileMessageStore implements MessageStore {
+
+    /**
+     * Name of the file that marks a mail directory whose message files are all in the stored format (see
+     * WireFormatEncoder), so no file is ever converted again.
+     */
+    public static final String FORMAT_MARKER_FILE_NAME = "wire-format";
+
+    protected final File mailDirectory;
+    protected final MailboxIndex index;
+
+    /**
+     * Creates the message store for a user's mail directory.
+     *
+     * @param mailDirectory The user's mail directory.
+     */
+    public FileMessageStore(File mailDirectory) {
+        this.mailDirectory = mailDirectory;
+        this.index = new MailboxIndex(mailDirectory, this::scan);
+    }
+
+    @Override
+    public MailboxIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public List<MailboxIndex.Entry> list() throws IOException {
+        return index.read();
+    }
+
+    /**
+     * Checks if a message was published into the store, even if it was deleted since. A message whose file exists is
+     * published, as is one that is listed in the index but whose file was deleted.
+     */
+    @Override
+    public boolean contains(long id) throws IOException {
+        return getMessageFile(id).exists() || (mailDirectory.isDirectory() && index.contains(id));
+    }
+
+    /**
+     * Publishes a complete message as its own file. A staging file is atomically renamed to the message file name;
+     * shared content is hard-linked (or copied, through a staging file) under the message file name. The id was
+     * allocated from the index and recorded in the delivery journal, so if the name is already taken, the directory no
+     * longer matches the index, and the message is not published under another id.
+     */
+    @Override
+    public File publish(Path content, long id, long size, int headerSize, boolean move) throws IOException {
+        if (move) {
+            File file = getMessageFile(id);
+            Files.move(content, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            index.append(id, size, headerSize);
+            return file;
+        }
+        File file = getMessageFile(id);
+        try {
+            Files.createLink(file.toPath(), content);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            Path temp = new File(mailDirectory, id + Mailbox.TEMP_FILE_SUFFIX).toPath();
+            Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+            return publish(temp, id, size, headerSize, true);
+        }
+        index.append(id, size, headerSize);
+        return file;
+    }
+
+    /**
+     * Replaces the content of a message by atomically renaming the staging file over the message file.
+     */
+    @Override
+    public File repair(MailboxIndex.Entry entry, Path content) throws IOException {
+        File file = locate(entry);
+        Files.move(content, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    @Override
+    public File locate(MailboxIndex.Entry entry) {
+        return getMessageFile(entry.getId());
+    }
+
+    @Override
+    public FileChannel open(MailboxIndex.Entry entry) throws IOException {
+        return FileChannel.open(locate(entry).toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Deletes a set of messages by flagging them as expunged in the index. If the index cannot be updated, it is
+     * discarded, and the files are deleted right away so the messages are not listed when the index is rebuilt.
+     */
+    @Override
+    public void expunge(Set<Long> ids) throws IOException {
+        if (ids.isEmpty())
+            return;
+        try {
+            index.markExpunged(ids);
+        } catch (IOException e) {
+            // The index can no longer be trusted, so have it rebuilt from the directory next time
+            index.invalidate();
+            deleteFiles(ids);
+        }
+    }
+
+    /**
+     * Deletes the files of a set of expunged messages, and then flags them as reclaimed in the index.
+     */
+    @Override
+    public void reclaim(Set<Long> ids) throws IOException {
+        if (ids.isEmpty())
+            return;
+        deleteFiles(ids);
+        index.markReclaimed(ids);
+    }
+
+    /**
+     * Deletes the files of a set of messages. Files that no longer exist are ignored.
+     */
+    protected void deleteFiles(Set<Long> ids) {
+        for (long id : ids)
+            //noinspection ResultOfMethodCallIgnored
+            getMessageFile(id).delete();
+    }
+
+    /**
+     * Returns the file where a message with a specified id is stored.
+     *
+     * @param id The message id.
+     * @return A File object for the message.
+     */
+    public File getMessageFile(long id) {
+        return new File(mailDirectory, id + Mailbox.MAIL_FILE_SUFFIX);
+    }
+
+    /**
+     * Lists the message files in the directory, to rebuild the index. Files whose names are not message ids were not
+     * created by the server, and are ignored.
+     * <p>
+     * When the index is first built in a directory that was never marked as converted, its message files were stored
+     * by an older version of the server, with bare LF line endings and without dot-stuffing, and are converted to the
+     * format used for new messages (see <code>convertLegacyFile()</code>), so every message can be sent to POP3
+     * clients as stored. The directory is then marked with a <code>wire-format</code> file, which is also created
+     * by any later rebuild, so the files are converted once: a message stored since then may legitimately contain
+     * bare LF bytes (e.g., binary content), and must not be converted again if the index is ever lost.
+     *
+     * @param created true if the index is being built for the first time.
+     * @return A list of entries, in no particular order.
+     */
+    protected List<MailboxIndex.Entry> scan(boolean created) {
+        List<MailboxIndex.Entry> entries = new ArrayList<>();
+        File marker = new File(mailDirectory, FORMAT_MARKER_FILE_NAME);
+        boolean convert = created && !marker.exists();
+        boolean converted = true;
+        File[] files = mailDirectory.listFiles(f -> f.isFile() && f.getName().endsWith(Mailbox.MAIL_FILE_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                long id;
+                try {
+                    id = Long.parseLong(name.substring(0, name.length() - Mailbox.MAIL_FILE_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    // Not a message file created by the server, ignore it
+                    continue;
+                }
+                if (convert) {
+                    try {
+                        convertLegacyFile(file, id);
+                    } catch (IOException e) {
+                        // The message is still listed, as stored
+                        converted = false;
+                        Log.error("Error converting the message file {}", file, e);
+                    }
+                }
+                entries.add(new MailboxIndex.Entry(id, file.length(), -1, 0, -1));
+            }
+        }
+        // Not marked if a file could not be converted, so the conversion is tried again if the index is recreated
+        if (converted && mailDirectory.isDirectory() && !marker.exists()) {
+            try {
+                Files.createFile(marker.toPath());
+            } catch (IOException e) {
+                Log.error("Error creating the file {}", marker, e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Converts a message file stored by an older version of the server, which kept the lines as received with a bare
+     * LF line ending and without dot-stuffing, to the format of new messages (see WireFormatEncoder): CRLF line
+     * endings, and an additional "." at the start of every line that starts with ".", so the file can be sent as is in
+     * the response of RETR or TOP. The converted file atomically replaces the original one; a file that needs no
+     * change is left as is.
+     *
+     * @param file The message file.
+     * @param id   The message id.
+     * @throws IOException If the file cannot be read or converted.
+     */
+    private void convertLegacyFile(File file, long id) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        ByteArrayOutputStream converted = new ByteArrayOutputStream(content.length + content.length / 32 + 16);
+        WireFormatEncoder encoder = new WireFormatEncoder(true);
+        for (byte b : content) {
+            int insert = encoder.escape(b);
+            if (insert >= 0)
+                converted.write(insert);
+            converted.write(b);
+        }
+        if (converted.size() == content.length)
+            return;
+        Path temp = new File(mailDirectory, id + Mailbox.TEMP_FILE_SUFFIX).toPath();
+        try (OutputStream output = Files.newOutputStream(temp)) {
+            converted.writeTo(output);
+        }
+        Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
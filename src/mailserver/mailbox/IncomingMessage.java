@@ -0,0 +1,101 @@
+package mailserver.mailbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A new message being written into a mailbox. The content is written directly to a temporary file through its
+ * FileChannel, and the message only becomes part of the mailbox once it is closed: it is then recorded in the delivery
+ * journal and the file is atomically renamed to its message file name, so a partially written message is never
+ * visible.
+ */
+public class IncomingMessage implements Closeable {
+
+    private final Mailbox mailbox;
+    private final long id;
+    private final File file;
+    private final FileChannel channel;
+    private boolean closed = false;
+
+    IncomingMessage(Mailbox mailbox, long id, File file, FileChannel channel) {
+        this.mailbox = mailbox;
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Returns the channel used to write the message content.
+     *
+     * @return A FileChannel open for writing, positioned at the end of the content written so far.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Closes the message file and publishes the message into the mailbox, once its delivery is durable.
+     *
+     * @throws IOException If there is an error closing the file or publishing the message.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed)
+            closeAll(List.of(this), MessageHeaders.find(file.toPath(), channel.size()));
+    }
+
+    /**
+     * Closes a set of message files with the same content, for different mailboxes, and publishes them. The delivery is
+     * recorded once in the delivery journal for all the messages, so they are made durable together.
+     *
+     * @param messages   The messages, all with the same content.
+     * @param headerSize The size of the message headers, in bytes, or -1 if unknown.
+     * @throws IOException If there is an error closing the files or publishing the messages.
+     */
+    static void closeAll(List<IncomingMessage> messages, int headerSize) throws IOException {
+        List<IncomingMessage> open = new ArrayList<>();
+        for (IncomingMessage message : messages) {
+            if (!message.closed)
+                open.add(message);
+        }
+        if (open.isEmpty())
+            return;
+        long size = open.get(0).channel.size();
+        List<Mailbox> recipients = new ArrayList<>();
+        long[] ids = new long[open.size()];
+        for (int i = 0; i < ids.length; i++) {
+            IncomingMessage message = open.get(i);
+            message.closed = true;
+            message.channel.close();
+            recipients.add(message.mailbox);
+            ids[i] = message.id;
+        }
+        DeliveryJournal.getInstance().deliver(open.get(0).file.toPath(), size, recipients, ids, () -> {
+            List<File> published = new ArrayList<>();
+            for (IncomingMessage message : open)
+                published.add(message.mailbox.publishMessage(message.id, size, headerSize));
+            return published;
+        });
+    }
+
+    /**
+     * Closes and deletes the message file without adding it to the mailbox, e.g., if the message could not be
+     * received completely.
+     */
+    public void discard() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing else to do, the file is deleted anyway
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -1,12 +1,19 @@
 package mailserver.mailbox;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
- * An individual mail message.
+ * An individual mail message. A message is either a standalone object holding its own file, size and deletion tag, or
+ * a view of a message loaded in a Mailbox, which keeps that information in its own compact form.
  */
 public class MailMessage {
 
+    private final Mailbox mailbox;
+    private final int position;
     private final File file;
     private final long fileSize;
     private boolean deleted;
@@ -17,35 +24,122 @@ public class MailMessage {
      * @param file The file object where the file content is found.
      */
     public MailMessage(File file) {
+        this(file, file.length());
+    }
+
+    /**
+     * Creates a new mail message object whose size is already known, e.g., from the mailbox index, so the file itself
+     * does not need to be accessed.
+     *
+     * @param file     The file object where the file content is found.
+     * @param fileSize The number of bytes in the file.
+     */
+    public MailMessage(File file, long fileSize) {
+        this.mailbox = null;
+        this.position = -1;
         this.file = file;
-        this.fileSize = file.length();
+        this.fileSize = fileSize;
         this.deleted = false;
     }
 
     /**
-     * Returns the file object associated to the mail message.
+     * Creates a view of a message loaded in a mailbox. Every operation is delegated to the mailbox, so the view holds
+     * no state of its own and the mailbox's message counts are kept up to date.
+     *
+     * @param mailbox  The mailbox the message belongs to.
+     * @param position The 0-based position of the message in the mailbox.
+     */
+    MailMessage(Mailbox mailbox, int position) {
+        this.mailbox = mailbox;
+        this.position = position;
+        this.file = null;
+        this.fileSize = 0;
+    }
+
+    /**
+     * Returns the file object associated to the mail message. Messages kept in segment files by the mailbox's message
+     * store have no file of their own; use <code>openContent()</code> to read any message.
      *
-     * @return A File object containing the content of the mail message.
+     * @return A File object containing the content of the mail message, or null if the message is not stored in its
+     * own file.
      */
     public File getFile() {
+        if (mailbox != null)
+            return mailbox.getMessageFileAt(position);
         return file;
     }
 
+    /**
+     * Opens the content of the mail message for reading. The content starts at the returned channel's position and
+     * is <code>getFileSize()</code> bytes long, as the channel may hold other messages as well.
+     *
+     * @return A FileChannel positioned at the start of the message, which must be closed by the caller.
+     * @throws IOException If the message no longer exists or cannot be opened.
+     */
+    public FileChannel openContent() throws IOException {
+        if (mailbox != null)
+            return mailbox.openContentAt(position);
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Returns the content of the mail message from the shared MessageContentCache, if the message is retrieved often
+     * enough to be cached. Otherwise, the content should be read with <code>openContent()</code>.
+     *
+     * @return A read-only buffer with the message content, which may be shared, or null if the message is not cached.
+     */
+    public ByteBuffer getCachedContent() {
+        if (mailbox != null)
+            return mailbox.getCachedContentAt(position);
+        return MessageContentCache.getInstance().get(file, 0, fileSize, false);
+    }
+
     /**
      * Returns the number of bytes in the mail message, including headers.
      *
      * @return The size of the mail message, in bytes.
      */
     public long getFileSize() {
+        if (mailbox != null)
+            return mailbox.getMessageSizeAt(position);
         return fileSize;
     }
 
+    /**
+     * Returns the size of the message headers, including the empty line that separates them from the body, as recorded
+     * in the mailbox index when the message was delivered. The headers start at the beginning of the content.
+     *
+     * @return The size of the headers, in bytes, or -1 if it was not recorded and must be found by reading the content
+     * (see MessageHeaders).
+     */
+    public int getHeaderSize() {
+        if (mailbox != null)
+            return mailbox.getHeaderSizeAt(position);
+        return -1;
+    }
+
+    /**
+     * Returns a unique id for the message, which never changes and is never given to another message of the same
+     * mailbox, as required by the POP3 UIDL command. The id is taken from the mailbox index, or from the file name for
+     * a standalone message, so the content does not need to be read.
+     *
+     * @return The unique id, made of printable ASCII characters, or null if the message belongs to a mailbox that was
+     * loaded without its index, whose messages have no unique ids.
+     */
+    public String getUniqueId() {
+        if (mailbox != null)
+            return mailbox.getUniqueIdAt(position);
+        return file.getName();
+    }
+
     /**
      * Returns true if the message is tagged to be deleted.
      *
      * @return true if the message is tagged to be deleted, and false otherwise.
      */
     public boolean isDeleted() {
+        if (mailbox != null)
+            return mailbox.isDeletedAt(position);
         return deleted;
     }
 
@@ -56,13 +150,19 @@ public class MailMessage {
      * <code>deleteItemsTaggedForDeletion()</code> method in Mailbox.
      */
     public void tagForDeletion() {
-        this.deleted = true;
+        if (mailbox != null)
+            mailbox.setDeletedAt(position, true);
+        else
+            this.deleted = true;
     }
 
     /**
      * Resets the deletion tag so the message is no longer marked to be deleted.
      */
     public void undelete() {
-        this.deleted = false;
+        if (mailbox != null)
+            mailbox.setDeletedAt(position, false);
+        else
+            this.deleted = false;
     }
 }
@@ -0,0 +1,234 @@
+package mailserver.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Byte-oriented counterpart of MailWriter: an OutputStream that saves raw message bytes into a set of user mailboxes,
+ * without decoding them into characters. Content is accumulated in a direct ByteBuffer and written to the message
+ * files through their FileChannels; content larger than the buffer is written together with the buffered content in a
+ * single gathering write, without being copied into the buffer.
+ * <p>
+ * Content written with <code>write()</code> must already be in the stored format (see WireFormatEncoder), as the
+ * lines of a message received with DATA are; content written with <code>writeContent()</code> is encoded into it.
+ * <p>
+ * As with MailWriter, a message for several recipients is written once and linked into their mailboxes when the
+ * <code>LINK</code> delivery mode is selected. Unlike MailWriter, this class is not thread-safe: it is meant to be used
+ * by a single session at a time, so it avoids any locking.
+ */
+public class MailOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("mailserver.writeBufferSize", 64 * 1024);
+
+    private final List<Mailbox> recipients;
+    private final File spoolFile;
+    private final List<IncomingMessage> messages = new ArrayList<>();
+    private final FileChannel[] channels;
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final MessageHeaders.Tracker headers = new MessageHeaders.Tracker();
+    private final WireFormatEncoder encoder;
+    private boolean closed = false;
+
+    /**
+     * Creates a new MailOutputStream for a collection of mailbox recipients, with a buffer of the default size (set by
+     * the <code>mailserver.writeBufferSize</code> system property).
+     *
+     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @throws IOException If the message files cannot be created.
+     */
+    public MailOutputStream(Collection<Mailbox> recipients) throws IOException {
+        this(recipients, ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE), false);
+    }
+
+    /**
+     * Creates a new MailOutputStream for a collection of mailbox recipients, using a buffer provided by the caller.
+     * The buffer may be reused for another stream once this stream is closed, which avoids allocating a new direct
+     * buffer for every message.
+     *
+     * @param recipients Collection (list or set) of mailboxes where the content will be saved.
+     * @param buffer     Buffer used to accumulate content before it is written; its content is discarded.
+     * @param binary     true if the content written with <code>writeContent()</code> is binary (e.g., sent with the
+     *                   SMTP BODY=BINARYMIME parameter), so its line endings are kept as they are.
+     * @throws IOException If the message files cannot be created.
+     */
+    public MailOutputStream(Collection<Mailbox> recipients, ByteBuffer buffer, boolean binary) throws IOException {
+        this.recipients = new ArrayList<>(recipients);
+        this.buffer = buffer;
+        this.encoder = new WireFormatEncoder(!binary);
+        buffer.clear();
+        try {
+            if (MailWriter.DELIVERY_MODE == MailWriter.DeliveryMode.LINK && recipients.size() > 1) {
+                spoolFile = Mailbox.createSpoolFile();
+                channels = new FileChannel[]{FileChannel.open(spoolFile.toPath(), StandardOpenOption.WRITE)};
+            } else {
+                spoolFile = null;
+                channels = new FileChannel[recipients.size()];
+                for (Mailbox recipient : recipients) {
+                    IncomingMessage message = recipient.createNewMessage();
+                    channels[messages.size()] = message.getChannel();
+                    messages.add(message);
+                }
+            }
+        } catch (IOException e) {
+            for (IncomingMessage message : messages)
+                message.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a single byte to the buffer.
+     *
+     * @param b The byte to be written.
+     * @throws IOException If the buffer is full and there is an error writing its content.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        headers.update(b);
+        if (!buffer.hasRemaining())
+            flush();
+        buffer.put((byte) b);
+    }
+
+    /**
+     * Writes a sequence of bytes. Small writes are accumulated in the buffer, while a write larger than the buffer is
+     * sent to the files right away, together with the content already buffered.
+     *
+     * @param b   Array of bytes to be written.
+     * @param off Offset from which to start writing bytes.
+     * @param len Number of bytes to write.
+     * @throws IOException If there is an error writing to any of the message files.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        headers.update(b, off, len);
+        if (len <= buffer.remaining()) {
+            buffer.put(b, off, len);
+            return;
+        }
+        if (len < buffer.capacity()) {
+            flush();
+            buffer.put(b, off, len);
+            return;
+        }
+        buffer.flip();
+        ByteBuffer content = ByteBuffer.wrap(b, off, len);
+        for (FileChannel channel : channels) {
+            gather[0] = buffer.duplicate();
+            gather[1] = content.duplicate();
+            while (gather[1].hasRemaining())
+                channel.write(gather);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes a sequence of raw message content, as transferred without a terminating line (e.g., by the SMTP BDAT
+     * command). The content is encoded as it is written, so the stored message has the same format as a message
+     * received with DATA: bare LF line endings are turned into CRLF, and lines that start with a "." are dot-stuffed.
+     * Binary content keeps its bytes as they are, apart from the dot-stuffing, which the POP3 client removes; it is
+     * then sent to POP3 clients with any bare LF or CR bytes it has, as POP3 has no way to transfer binary content.
+     * The content may be split at any point between calls.
+     *
+     * @param b   Array of bytes to be written.
+     * @param off Offset from which to start writing bytes.
+     * @param len Number of bytes to write.
+     * @throws IOException If there is an error writing to any of the message files.
+     */
+    public void writeContent(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int segment = off;
+        for (int i = off; i < end; i++) {
+            int insert = encoder.escape(b[i]);
+            if (insert >= 0) {
+                write(b, segment, i - segment);
+                write(insert);
+                segment = i;
+            }
+        }
+        write(b, segment, end - segment);
+    }
+
+    /**
+     * Writes the buffered content to the message files.
+     *
+     * @throws IOException If there is an error writing to any of the message files.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        for (FileChannel channel : channels) {
+            ByteBuffer content = buffer.duplicate();
+            while (content.hasRemaining())
+                channel.write(content);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes any buffered content and closes the message files, adding the messages to the recipients' mailboxes once
+     * the delivery is durable. If the message was spooled, it is now published into each recipient's mailbox and the
+     * spool file is removed.
+     *
+     * @throws IOException If there is an exception while saving or closing any of the message files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        long start = System.nanoTime();
+        deliver();
+        Mailbox.recordDelivery(recipients.size(), start);
+    }
+
+    /**
+     * Writes the rest of the content and adds the message to the recipients' mailboxes.
+     */
+    private void deliver() throws IOException {
+        flush();
+        if (spoolFile == null) {
+            if (!messages.isEmpty())
+                IncomingMessage.closeAll(messages, headers.getHeaderSize(channels[0].size()));
+            return;
+        }
+        try {
+            long size = channels[0].size();
+            channels[0].close();
+            Mailbox.deliverMessage(spoolFile.toPath(), size, headers.getHeaderSize(size), recipients);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            spoolFile.delete();
+        }
+    }
+
+    /**
+     * Discards the message: closes and deletes the message files without adding them to the recipients' mailboxes.
+     */
+    public void discard() {
+        if (closed)
+            return;
+        closed = true;
+        for (IncomingMessage message : messages)
+            message.discard();
+        if (spoolFile != null) {
+            try {
+                channels[0].close();
+            } catch (IOException e) {
+                // Nothing else to do, the file is deleted anyway
+            }
+            //noinspection ResultOfMethodCallIgnored
+            spoolFile.delete();
+        }
+    }
+}
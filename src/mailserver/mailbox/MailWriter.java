@@ -1,19 +1,53 @@
 package mailserver.mailbox;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 /**
  * Writer interface that saves the content into a set of user mailboxes. Can be used in the same way as any other
- * regular Writer (e.g., FileWriter), as well as in combination with a BufferedWriter or PrintWriter.
+ * regular Writer (e.g., FileWriter), as well as in combination with a BufferedWriter or PrintWriter. The content is
+ * plain message text, without dot-stuffing; it is stored with CRLF line endings and dot-stuffed, so it can be sent to
+ * POP3 clients as stored. Uses an explicit lock instead of synchronized methods, so a virtual thread blocked on file
+ * I/O does not pin its carrier thread.
+ * <p>
+ * In the default <code>LINK</code> delivery mode, a message for several recipients is written once to a spool file,
+ * which is then published into each recipient's mailbox as a hard link, so the amount of data written does not depend
+ * on the number of recipients. The <code>COPY</code> mode writes a separate copy for each recipient. The mode is
+ * selected with the <code>mailserver.delivery</code> system property.
  */
 public class MailWriter extends Writer {
 
+    /**
+     * How a message with several recipients is stored in their mailboxes.
+     */
+    public enum DeliveryMode {
+        /**
+         * The content is written separately to each recipient's mailbox.
+         */
+        COPY,
+        /**
+         * The content is written once and linked into each recipient's mailbox.
+         */
+        LINK
+    }
+
     public static final int BUFFER_SIZE = 4096;
+    public static final DeliveryMode DELIVERY_MODE =
+            DeliveryMode.valueOf(System.getProperty("mailserver.delivery", "link").toUpperCase());
+
+    private final List<Mailbox> recipients;
+    private final File spoolFile;
     private final Collection<Writer> writers;
     private final StringBuffer buffer;
+    private final ReentrantLock writeLock = new ReentrantLock();
 
     /**
      * Creates a new MailWriter for a collection of mailbox recipients. Any content written to this MailWriter will be
@@ -22,7 +56,18 @@ public class MailWriter extends Writer {
      * @param recipients Collection (list or set) of mailboxes where the content will be saved.
      */
     public MailWriter(Collection<Mailbox> recipients) {
-        writers = recipients.stream().map(Mailbox::getNewMessageWriter).collect(Collectors.toList());
+        this.recipients = new ArrayList<>(recipients);
+        if (DELIVERY_MODE == DeliveryMode.LINK && recipients.size() > 1) {
+            try {
+                spoolFile = Mailbox.createSpoolFile();
+                writers = Collections.singletonList(new MessageFileWriter(spoolFile));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            spoolFile = null;
+            writers = recipients.stream().map(Mailbox::getNewMessageWriter).collect(Collectors.toList());
+        }
         buffer = new StringBuffer(BUFFER_SIZE);
     }
 
@@ -36,10 +81,15 @@ public class MailWriter extends Writer {
      * @param len  Number of characters to write
      */
     @Override
-    public synchronized void write(char[] cbuf, int off, int len) throws IOException {
-        if (buffer.length() + len > buffer.capacity())
-            flush();
-        buffer.append(cbuf, off, len);
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            if (buffer.length() + len > buffer.capacity())
+                flush();
+            buffer.append(cbuf, off, len);
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     /**
@@ -48,26 +98,42 @@ public class MailWriter extends Writer {
      * @throws IOException If there is an exception while saving content into any of the mailbox files.
      */
     @Override
-    public synchronized void flush() throws IOException {
-        if (buffer.length() == 0)
-            return;
-        for (Writer w : writers) {
-            w.write(buffer.toString());
-            w.flush();
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (buffer.length() == 0)
+                return;
+            for (Writer w : writers) {
+                w.write(buffer.toString());
+                w.flush();
+            }
+            buffer.setLength(0);
+        } finally {
+            writeLock.unlock();
         }
-        buffer.setLength(0);
     }
 
     /**
-     * Closes the MailWriter and corresponding mailbox item writers.
+     * Closes the MailWriter and corresponding mailbox item writers. If the message was spooled, it is now published
+     * into each recipient's mailbox and the spool file is removed.
      *
      * @throws IOException If there is an exception while saving or closing any of the mailbox files.
      */
     @Override
     public void close() throws IOException {
+        long start = System.nanoTime();
         flush();
         for (Writer w : writers) {
             w.close();
         }
+        if (spoolFile != null && spoolFile.exists()) {
+            try {
+                Mailbox.deliverMessage(spoolFile.toPath(), spoolFile.length(), recipients);
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                spoolFile.delete();
+            }
+        }
+        Mailbox.recordDelivery(recipients.size(), start);
     }
 }
@@ -1,57 +1,80 @@
 package mailserver.mailbox;
 
+import mailserver.log.Log;
+import mailserver.metrics.Histogram;
+import mailserver.metrics.Metrics;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
 
+/**
+ * A user's mailbox. Once loaded, the messages are kept in a compact, column-oriented form: parallel arrays with the
+ * message ids and sizes, and a bit set with the deletion tags, so even a very large mailbox takes a few objects per
+ * session rather than several per message. The MailMessage objects returned by the mailbox are lightweight views over
+ * these columns, created when requested, and message file paths are only built when a file is needed.
+ * <p>
+ * Messages are kept by the MessageStore backend selected for the mail store, either as one file per message or in
+ * segment files; the mailbox only deals with message ids and with the staging files where new messages are written.
+ */
 public class Mailbox implements Iterable<MailMessage> {
 
     public static final String USER_FILE_NAME = "users.txt";
     public static final File USER_MAIL_BASE_DIRECTORY = new File("mail.store");
     public static final String MAIL_FILE_SUFFIX = ".mail";
+    public static final String TEMP_FILE_SUFFIX = ".tmp";
+    public static final File SPOOL_DIRECTORY = new File(USER_MAIL_BASE_DIRECTORY, ".spool");
 
-    private static HashMap<String, String> userMap = null;
+    private static final Histogram LOAD_TIME = Metrics.getInstance().histogram("mailserver_mailbox_load_seconds",
+            "Time to load the message list of a mailbox.", "", Histogram.LATENCY_BOUNDS, Histogram.SECONDS,
+            "mailserver:type=Mailbox,name=LoadTime");
+    private static final Histogram DELETE_TIME = Metrics.getInstance().histogram("mailserver_mailbox_delete_seconds",
+            "Time to delete the messages tagged for deletion from a mailbox.", "", Histogram.LATENCY_BOUNDS,
+            Histogram.SECONDS, "mailserver:type=Mailbox,name=DeleteTime");
+    private static final Histogram DELIVERY_TIME = Metrics.getInstance().histogram("mailserver_delivery_seconds",
+            "Time to complete the delivery of a received message to all its recipients.", "",
+            Histogram.LATENCY_BOUNDS, Histogram.SECONDS, "mailserver:type=Delivery,name=DeliveryTime");
+    private static final Histogram DELIVERY_RECIPIENTS = Metrics.getInstance().histogram(
+            "mailserver_delivery_recipients", "Number of recipients of each delivered message.", "",
+            Histogram.COUNT_BOUNDS, 1, "mailserver:type=Delivery,name=Recipients");
 
     private final String user;
     private final File mailDirectory;
-    private List<MailMessage> messageList = null;
+    private final MessageStore store;
+    private final MailboxIndex index;
+    private long[] messageIds = null;
+    private long[] messageSizes;
+    private int[] messageSegments;
+    private long[] messageOffsets;
+    private int[] messageHeaderSizes;
+    private long epoch;
+    private boolean locationsShared;
+    private File[] messageFiles;
+    private final BitSet deletedMessages = new BitSet();
+    private long totalSize;
+    private int undeletedCount;
+    private long undeletedSize;
+    private boolean authenticated = false;
 
     /**
      * Initialized the mailbox for a specified user.
      *
-     * @param user The user's address, including domain name.
+     * @param user The user's address, including domain name. Compared ignoring case.
      * @throws InvalidUserException If the user's address is not a valid address according to the list of accepted
      *                              addresses.
      */
     public Mailbox(String user) throws InvalidUserException {
-        if (!isValidUser(user))
+        UserDirectory.Account account = UserDirectory.getInstance().lookup(user);
+        if (account == null)
             throw new InvalidUserException();
-        this.user = user;
-        this.mailDirectory = new File(USER_MAIL_BASE_DIRECTORY, user);
-    }
-
-    /**
-     * Initializes the map of user addresses and passwords from the users database. Only retrieves the data once, so
-     * changes in the database require the server to be restarted.
-     *
-     * @return A map from a user's address to the user's password.
-     */
-    private static synchronized Map<String, String> getUserMap() {
-        if (userMap != null)
-            return userMap;
-        userMap = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] split = line.split(" ", 2);
-                userMap.put(split[0], split[1]);
-            }
-        } catch (FileNotFoundException e) {
-            // Do nothing, there are no users
-        } catch (IOException e) {
-            // Do nothing, accept no users
-        }
-        return userMap;
+        this.user = account.getName();
+        this.mailDirectory = new File(USER_MAIL_BASE_DIRECTORY, this.user);
+        this.store = MessageStore.forDirectory(mailDirectory);
+        this.index = store.getIndex();
     }
 
     /**
@@ -61,7 +84,7 @@ public class Mailbox implements Iterable<MailMessage> {
      * @return true if the user is in the database, and false otherwise.
      */
     public static boolean isValidUser(String user) {
-        return getUserMap().containsKey(user);
+        return UserDirectory.getInstance().isValidUser(user);
     }
 
     public String getUsername() {
@@ -69,42 +92,472 @@ public class Mailbox implements Iterable<MailMessage> {
     }
 
     /**
-     * Checks the user's password and, if valid, loads the user's mailbox messages from the mail storage.
+     * Checks the user's password, without loading the mailbox. Once the password was accepted, the mailbox can be
+     * loaded with <code>loadMessages()</code> without checking it again.
+     *
+     * @param password The user's password, unencrypted.
+     * @return true if the password is correct, and false otherwise.
+     */
+    public boolean authenticate(String password) {
+        UserDirectory.Account account = UserDirectory.getInstance().lookup(user);
+        authenticated = account != null && account.checkPassword(password);
+        return authenticated;
+    }
+
+    /**
+     * Locks the user's maildrop for a POP3 session, so no other session can open it until the lock is released (see
+     * MaildropLocks). Deliveries to the mailbox are not affected. Never waits for the lock.
+     *
+     * @return The lock, to be released when the session ends, or null if the maildrop is already locked.
+     * @throws IOException If the maildrop cannot be locked.
+     */
+    public MaildropLocks.Lock lockMaildrop() throws IOException {
+        return MaildropLocks.getInstance().tryLock(user, mailDirectory);
+    }
+
+    /**
+     * Checks the user's password and, if valid, loads the user's mailbox messages from the mail storage. The list of
+     * messages and their sizes are read from the mailbox index, without accessing the individual message files. The
+     * number of messages and their total size are counted once here, and then kept up to date as messages are tagged
+     * for deletion or undeleted. If the mailbox did not change since it was last loaded by this process, the columns
+     * are taken from the MailboxCache instead of the index.
      *
      * @param password The user's password, unencrypted.
      * @throws MailboxNotAuthenticatedException If the password was not provided or is incorrect.
      */
     public void loadMessages(String password) throws MailboxNotAuthenticatedException {
-        if (password == null || !password.equals(getUserMap().get(user)))
+        if (!authenticate(password))
             throw new MailboxNotAuthenticatedException();
-        this.messageList = Collections.emptyList();
-        if (mailDirectory.exists() && mailDirectory.isDirectory()) {
-            File[] files = mailDirectory.listFiles(f -> f.isFile() && f.getName().endsWith(MAIL_FILE_SUFFIX));
-            if (files != null)
-                this.messageList = Arrays.stream(files).sorted().map(MailMessage::new).collect(Collectors.toList());
+        loadMessages();
+    }
+
+    /**
+     * Loads the user's mailbox messages from the mail storage, once the password was accepted by
+     * <code>authenticate()</code>, without checking it again (which may take a costly password hash).
+     *
+     * @throws MailboxNotAuthenticatedException If the password was not accepted yet.
+     */
+    public void loadMessages() throws MailboxNotAuthenticatedException {
+        if (!authenticated)
+            throw new MailboxNotAuthenticatedException();
+        long start = System.nanoTime();
+        readMessages();
+        LOAD_TIME.recordSince(start);
+    }
+
+    /**
+     * Loads the message columns, from the cache, the index, or the directory.
+     */
+    private void readMessages() {
+        MailboxCache.Version version = MailboxCache.getVersion(mailDirectory);
+        MailboxCache.Snapshot snapshot = MailboxCache.getInstance().get(mailDirectory, version);
+        if (snapshot != null) {
+            load(snapshot);
+            return;
+        }
+        long[] ids;
+        long[] sizes;
+        File[] files = null;
+        try {
+            List<MailboxIndex.Entry> entries = store.list();
+            ids = new long[entries.size()];
+            sizes = new long[entries.size()];
+            int[] segments = new int[entries.size()];
+            long[] offsets = new long[entries.size()];
+            int[] headerSizes = new int[entries.size()];
+            for (int i = 0; i < ids.length; i++) {
+                MailboxIndex.Entry entry = entries.get(i);
+                ids[i] = entry.getId();
+                sizes[i] = entry.getSize();
+                segments[i] = entry.getSegment();
+                offsets[i] = entry.getOffset();
+                headerSizes[i] = entry.getHeaderSize();
+            }
+            snapshot = new MailboxCache.Snapshot(version, index.getEpoch(), ids, sizes, segments, offsets, headerSizes,
+                    Arrays.stream(sizes).sum());
+            MailboxCache.getInstance().put(mailDirectory, snapshot);
+            load(snapshot);
+            return;
+        } catch (IOException e) {
+            // The index could not be used, so list the directory instead; the files are kept, as their names may not
+            // be message ids, and the ids are not persistent, so no unique id is given (see getUniqueIdAt())
+            if (mailDirectory.isDirectory())
+                files = mailDirectory.listFiles(f -> f.isFile() && f.getName().endsWith(MAIL_FILE_SUFFIX));
+            if (files == null)
+                files = new File[0];
+            Arrays.sort(files);
+            ids = new long[files.length];
+            sizes = new long[files.length];
+            for (int i = 0; i < files.length; i++) {
+                ids[i] = getMessageId(files[i]);
+                sizes[i] = files[i].length();
+            }
+        }
+        load(new MailboxCache.Snapshot(null, -1, ids, sizes, null, null, null, Arrays.stream(sizes).sum()));
+        this.messageFiles = files;
+    }
+
+    /**
+     * Sets the message columns of the loaded mailbox from a snapshot, with no message tagged for deletion. The columns
+     * are shared with the snapshot, which may be cached.
+     */
+    private void load(MailboxCache.Snapshot snapshot) {
+        this.messageSizes = snapshot.sizes;
+        this.messageSegments = snapshot.segments;
+        this.messageOffsets = snapshot.offsets;
+        this.messageHeaderSizes = snapshot.headerSizes;
+        this.locationsShared = true;
+        this.messageFiles = null;
+        this.epoch = snapshot.epoch;
+        this.deletedMessages.clear();
+        this.totalSize = snapshot.totalSize;
+        this.undeletedCount = snapshot.ids.length;
+        this.undeletedSize = snapshot.totalSize;
+        this.messageIds = snapshot.ids;
+    }
+
+    /**
+     * Returns the index entry of the message at a position in the mailbox, as loaded. Only valid if the mailbox was
+     * loaded from the index.
+     */
+    private MailboxIndex.Entry getEntryAt(int position) {
+        return new MailboxIndex.Entry(messageIds[position], messageSizes[position], messageSegments[position],
+                messageOffsets[position], messageHeaderSizes[position]);
+    }
+
+    /**
+     * Returns the file of the message at a position in the mailbox. Used by the MailMessage views.
+     *
+     * @param position The 0-based position of the message.
+     * @return A File object for the message, or null if the message is not stored in its own file.
+     */
+    File getMessageFileAt(int position) {
+        if (messageFiles != null)
+            return messageFiles[position];
+        return messageSegments[position] < 0 ? getMessageFile(messageIds[position]) : null;
+    }
+
+    /**
+     * Opens the content of the message at a position in the mailbox, wherever the message store keeps it. Used by the
+     * MailMessage views. If the message was moved since the mailbox was loaded (e.g., its segment was compacted), its
+     * new location is read from the index.
+     *
+     * @param position The 0-based position of the message.
+     * @return A FileChannel open for reading, positioned at the start of the message content.
+     * @throws IOException If the message no longer exists or cannot be opened.
+     */
+    FileChannel openContentAt(int position) throws IOException {
+        if (messageFiles != null)
+            return FileChannel.open(messageFiles[position].toPath(), StandardOpenOption.READ);
+        MailboxIndex.Entry entry = getEntryAt(position);
+        try {
+            return store.open(entry).position(entry.getOffset());
+        } catch (NoSuchFileException e) {
+            if (entry.getSegment() < 0)
+                throw e;
+            for (MailboxIndex.Entry moved : store.list()) {
+                if (moved.getId() == entry.getId() && moved.getSegment() >= 0) {
+                    if (locationsShared) {
+                        // The columns belong to a cached snapshot, so update a copy
+                        messageSegments = messageSegments.clone();
+                        messageOffsets = messageOffsets.clone();
+                        locationsShared = false;
+                    }
+                    messageSegments[position] = moved.getSegment();
+                    messageOffsets[position] = moved.getOffset();
+                    return store.open(moved).position(moved.getOffset());
+                }
+            }
+            throw e;
         }
     }
 
+    /**
+     * Returns the content of the message at a position in the mailbox from the MessageContentCache, if the message is
+     * frequently retrieved. Used by the MailMessage views.
+     *
+     * @param position The 0-based position of the message.
+     * @return A read-only buffer with the message content, or null if the message should be read with
+     * <code>openContentAt()</code>.
+     */
+    ByteBuffer getCachedContentAt(int position) {
+        if (messageFiles != null)
+            return MessageContentCache.getInstance().get(messageFiles[position], 0, messageSizes[position], false);
+        MailboxIndex.Entry entry = getEntryAt(position);
+        return MessageContentCache.getInstance().get(store.locate(entry), entry.getOffset(), entry.getSize(),
+                entry.getSegment() >= 0);
+    }
+
+    /**
+     * Returns the size of the headers of the message at a position in the mailbox, as recorded when the message was
+     * delivered. Used by the MailMessage views.
+     *
+     * @param position The 0-based position of the message.
+     * @return The size of the headers, including the empty line that ends them, or -1 if it was not recorded.
+     */
+    int getHeaderSizeAt(int position) {
+        return messageHeaderSizes != null ? messageHeaderSizes[position] : -1;
+    }
+
+    /**
+     * Returns the unique id of the message at a position in the mailbox, as in the response of the POP3 UIDL command:
+     * the message id qualified by the epoch of the mailbox index, so it never refers to another message, even if the
+     * index is recreated. Used by the MailMessage views. A mailbox whose index could not be used was loaded by listing
+     * its directory, so it has no persistent ids to give, and none of its messages has a unique id.
+     *
+     * @param position The 0-based position of the message.
+     * @return The unique id, made of printable ASCII characters, or null if the mailbox was loaded without its index.
+     */
+    String getUniqueIdAt(int position) {
+        if (messageFiles != null)
+            return null;
+        return Long.toString(epoch, 36) + "." + messageIds[position];
+    }
+
+    /**
+     * Returns the size of the message at a position in the mailbox. Used by the MailMessage views.
+     *
+     * @param position The 0-based position of the message.
+     * @return The size of the message, in bytes.
+     */
+    long getMessageSizeAt(int position) {
+        return messageSizes[position];
+    }
+
+    /**
+     * Checks if the message at a position in the mailbox is tagged for deletion. Used by the MailMessage views.
+     *
+     * @param position The 0-based position of the message.
+     * @return true if the message is tagged to be deleted, and false otherwise.
+     */
+    boolean isDeletedAt(int position) {
+        return deletedMessages.get(position);
+    }
+
+    /**
+     * Tags or untags the message at a position in the mailbox for deletion, keeping the counts of undeleted messages
+     * up to date. Used by the MailMessage views.
+     *
+     * @param position The 0-based position of the message.
+     * @param deleted  true to tag the message for deletion, or false to undelete it.
+     */
+    void setDeletedAt(int position, boolean deleted) {
+        if (deletedMessages.get(position) == deleted)
+            return;
+        deletedMessages.set(position, deleted);
+        undeletedCount += deleted ? -1 : 1;
+        undeletedSize += deleted ? -messageSizes[position] : messageSizes[position];
+    }
+
+    /**
+     * Returns the file where a message with a specified id is stored.
+     *
+     * @param id The message id.
+     * @return A File object for the message.
+     */
+    private File getMessageFile(long id) {
+        return new File(mailDirectory, id + MAIL_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the temporary file where a message with a specified id is written before it is published. Temporary
+     * files are never listed as messages.
+     *
+     * @param id The message id.
+     * @return A File object for the temporary file.
+     */
+    File getTempFile(long id) {
+        return new File(mailDirectory, id + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Creates a new, empty temporary file for a message. The file name comes from the mailbox's message id sequence,
+     * so creating it takes a constant number of file operations regardless of the number of messages in the mailbox,
+     * and concurrent deliveries never compete for the same name.
+     *
+     * @return The id of the new message.
+     * @throws IOException If the mailbox index cannot be read or the file cannot be created.
+     */
+    private long createMessageFile() throws IOException {
+        // Creates the directory if it doesn't exist
+        //noinspection ResultOfMethodCallIgnored
+        mailDirectory.mkdirs();
+        while (true) {
+            long id = index.allocateId();
+            if (!getMessageFile(id).exists() && getTempFile(id).createNewFile())
+                return id;
+            // left over by another process, try the next id
+        }
+    }
+
+    /**
+     * Allocates the id for a message that is published by linking an existing file.
+     *
+     * @return An id whose message file does not exist.
+     * @throws IOException If the mailbox index cannot be read.
+     */
+    private long allocateMessageId() throws IOException {
+        while (true) {
+            long id = index.allocateId();
+            if (!getMessageFile(id).exists())
+                return id;
+        }
+    }
+
+    /**
+     * Publishes a complete temporary message file into the mailbox's message store, which adds it to the mailbox
+     * index. Until then, the message is not visible to the mailbox, even if the index is
+     * rebuilt from the directory.
+     *
+     * @param id         The message id.
+     * @param size       The size of the message file, in bytes.
+     * @param headerSize The size of the message headers, in bytes, or -1 if unknown.
+     * @return The file that now holds the message.
+     * @throws IOException If the message cannot be stored or the index cannot be updated.
+     */
+    File publishMessage(long id, long size, int headerSize) throws IOException {
+        File file = store.publish(getTempFile(id).toPath(), id, size, headerSize, true);
+        MailboxCache.getInstance().invalidate(mailDirectory);
+        return file;
+    }
+
     /**
      * Creates a new file to store a new incoming message, as well as a FileWriter associated to the file. Used by the
-     * MailWriter class.
+     * MailWriter class. The message is written under a temporary name, and is recorded in the delivery journal and
+     * published into the mailbox when the writer is closed. The characters are stored with CRLF line endings and
+     * dot-stuffed (see MessageFileWriter), as the messages received by the SMTP server are.
      *
      * @return A FileWriter object associated to the new file.
+     * @throws UncheckedIOException If the mailbox index cannot be read or the file cannot be created.
      */
     public FileWriter getNewMessageWriter() {
-        // Creates the directory if it doesn't exist
+        try {
+            long id = createMessageFile();
+            File file = getTempFile(id);
+            return new MessageFileWriter(file) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (closed)
+                        return;
+                    closed = true;
+                    long size = file.length();
+                    int headerSize = MessageHeaders.find(file.toPath(), size);
+                    DeliveryJournal.getInstance().deliver(file.toPath(), size, List.of(Mailbox.this), new long[]{id},
+                            () -> List.of(publishMessage(id, size, headerSize)));
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates a new file to store a new incoming message, opened as a FileChannel for raw byte writes. Used by the
+     * MailOutputStream class. The message is written under a temporary name, and is recorded in the delivery journal
+     * and published into the mailbox when it is closed.
+     *
+     * @return An IncomingMessage object associated to the new file.
+     * @throws IOException If the mailbox index cannot be read or the file cannot be created.
+     */
+    public IncomingMessage createNewMessage() throws IOException {
+        long id = createMessageFile();
+        File file = getTempFile(id);
+        return new IncomingMessage(this, id, file, FileChannel.open(file.toPath(), StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Creates a new, empty file in the spool directory, where a message for several recipients is written before it is
+     * published into their mailboxes with <code>deliverMessage()</code>. The spool directory is inside the mail store,
+     * so it is on the same file system as the mailboxes.
+     *
+     * @return The new spool file.
+     * @throws IOException If the file cannot be created.
+     */
+    static File createSpoolFile() throws IOException {
         //noinspection ResultOfMethodCallIgnored
-        mailDirectory.mkdirs();
-        for (int i = 0; ; i++) {
-            try {
-                File file = new File(mailDirectory, i + MAIL_FILE_SUFFIX);
-                if (!file.createNewFile())
-                    continue;
-                return new FileWriter(file);
-            } catch (IOException e) {
-                // continue, try next index
-            }
+        SPOOL_DIRECTORY.mkdirs();
+        return File.createTempFile("delivery", ".tmp", SPOOL_DIRECTORY);
+    }
+
+    /**
+     * Records the delivery of a message that was written by a MailWriter or MailOutputStream, once it was added to all
+     * its recipients' mailboxes.
+     *
+     * @param recipients The number of recipients.
+     * @param startNanos The time when the message was completed, as given by <code>System.nanoTime()</code>.
+     */
+    static void recordDelivery(int recipients, long startNanos) {
+        DELIVERY_TIME.recordSince(startNanos);
+        DELIVERY_RECIPIENTS.record(recipients);
+    }
+
+    /**
+     * Adds a complete message file to the mailbox as a new message. The file is hard-linked into the mailbox, so the
+     * same content can be shared by any number of mailboxes without being copied. If the file system does not support
+     * hard links, the file is copied instead.
+     *
+     * @param message The file with the message content, which is not modified.
+     * @param size    The size of the message file, in bytes.
+     * @throws IOException If the message cannot be added to the mailbox.
+     */
+    public void deliverMessage(Path message, long size) throws IOException {
+        deliverMessage(message, size, List.of(this));
+    }
+
+    /**
+     * Adds a complete message file to several mailboxes, as in <code>deliverMessage(Path, long)</code>. The message
+     * headers are found by reading the beginning of the file.
+     *
+     * @param message    The file with the message content, which is not modified.
+     * @param size       The size of the message file, in bytes.
+     * @param recipients The mailboxes where the message is delivered.
+     * @throws IOException If the message cannot be added to any of the mailboxes.
+     */
+    static void deliverMessage(Path message, long size, List<Mailbox> recipients) throws IOException {
+        deliverMessage(message, size, MessageHeaders.find(message, size), recipients);
+    }
+
+    /**
+     * Adds a complete message file to several mailboxes, as in <code>deliverMessage(Path, long)</code>. The delivery
+     * is recorded once in the delivery journal for all the recipients before the message is linked into their
+     * mailboxes.
+     *
+     * @param message    The file with the message content, which is not modified.
+     * @param size       The size of the message file, in bytes.
+     * @param headerSize The size of the message headers, in bytes, or -1 if unknown.
+     * @param recipients The mailboxes where the message is delivered.
+     * @throws IOException If the message cannot be added to any of the mailboxes.
+     */
+    static void deliverMessage(Path message, long size, int headerSize, List<Mailbox> recipients) throws IOException {
+        long[] ids = new long[recipients.size()];
+        for (int i = 0; i < ids.length; i++) {
+            // Creates the directory if it doesn't exist
+            //noinspection ResultOfMethodCallIgnored
+            recipients.get(i).mailDirectory.mkdirs();
+            ids[i] = recipients.get(i).allocateMessageId();
         }
+        DeliveryJournal.getInstance().deliver(message, size, recipients, ids, () -> {
+            List<File> published = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++)
+                published.add(recipients.get(i).linkMessage(message, ids[i], size, headerSize));
+            return published;
+        });
+    }
+
+    /**
+     * Adds a complete message file to the mailbox's message store without modifying it. The per-file store hard-links
+     * the file into the mailbox (or copies it if the file system does not support hard links), and the segment store
+     * copies it into a segment.
+     *
+     * @return The file that now holds the message.
+     */
+    private File linkMessage(Path message, long id, long size, int headerSize) throws IOException {
+        File file = store.publish(message, id, size, headerSize, false);
+        MailboxCache.getInstance().invalidate(mailDirectory);
+        return file;
     }
 
     /**
@@ -118,15 +571,30 @@ public class Mailbox implements Iterable<MailMessage> {
      */
     @Override
     public Iterator<MailMessage> iterator() throws MailboxNotAuthenticatedException {
-        if (messageList == null)
+        if (messageIds == null)
             throw new MailboxNotAuthenticatedException();
-        return messageList.iterator();
+        return new Iterator<>() {
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < messageIds.length;
+            }
+
+            @Override
+            public MailMessage next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return new MailMessage(Mailbox.this, position++);
+            }
+        };
     }
 
     /**
      * Returns the mail message at a particular index. The index is 1-based (i.e., the first message has the index 1
      * instead of 0), as per POP3 conventions. Note that this message may have been tagged for deletion, so it is
-     * usually advisable to check isDeleted() before using the value of this entry.
+     * usually advisable to check isDeleted() before using the value of this entry. The returned object is a view of
+     * the message's entry in the mailbox, created by this call.
      *
      * @param index The index of the message to be retrieved.
      * @return A MailMessage object corresponding to the mail message.
@@ -134,9 +602,10 @@ public class Mailbox implements Iterable<MailMessage> {
      * @throws IndexOutOfBoundsException        If the index is less than 1 or larger than the number of messages.
      */
     public MailMessage getMailMessage(int index) throws MailboxNotAuthenticatedException, IndexOutOfBoundsException {
-        if (messageList == null)
+        if (messageIds == null)
             throw new MailboxNotAuthenticatedException();
-        return messageList.get(index - 1);
+        Objects.checkIndex(index - 1, messageIds.length);
+        return new MailMessage(this, index - 1);
     }
 
     /**
@@ -148,11 +617,9 @@ public class Mailbox implements Iterable<MailMessage> {
      * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
      */
     public int size(boolean includeDeleted) throws MailboxNotAuthenticatedException {
-        if (messageList == null)
+        if (messageIds == null)
             throw new MailboxNotAuthenticatedException();
-        if (includeDeleted)
-            return messageList.size();
-        return (int) messageList.stream().filter(item -> !item.isDeleted()).count();
+        return includeDeleted ? messageIds.length : undeletedCount;
     }
 
     /**
@@ -164,23 +631,122 @@ public class Mailbox implements Iterable<MailMessage> {
      * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
      */
     public long getTotalUndeletedFileSize(boolean includeDeleted) throws MailboxNotAuthenticatedException {
-        if (messageList == null)
+        if (messageIds == null)
+            throw new MailboxNotAuthenticatedException();
+        return includeDeleted ? totalSize : undeletedSize;
+    }
+
+    /**
+     * Returns the scan listing of the mailbox, as in the response of the POP3 LIST command: one line for each message
+     * not tagged for deletion, with the message's 1-based index and its size in bytes, separated by a space. Each line
+     * ends with a line feed. The listing is produced in a single pass over the messages.
+     *
+     * @return The scan listing, which is empty if there are no undeleted messages.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    public String getScanListing() throws MailboxNotAuthenticatedException {
+        if (messageIds == null)
+            throw new MailboxNotAuthenticatedException();
+        StringBuilder listing = new StringBuilder(undeletedCount * 12);
+        for (int i = deletedMessages.nextClearBit(0); i < messageIds.length; i = deletedMessages.nextClearBit(i + 1))
+            listing.append(i + 1).append(' ').append(messageSizes[i]).append('\n');
+        return listing.toString();
+    }
+
+    /**
+     * Returns the unique-id listing of the mailbox, as in the response of the POP3 UIDL command: one line for each
+     * message not tagged for deletion, with the message's 1-based index and its unique id (see
+     * <code>getUniqueIdAt()</code>), separated by a space. Each line ends with a line feed. The ids come from the
+     * mailbox index, so no message is read.
+     *
+     * @return The unique-id listing, which is empty if there are no undeleted messages, or null if the mailbox was
+     * loaded without its index, in which case the messages have no unique ids.
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    public String getUniqueIdListing() throws MailboxNotAuthenticatedException {
+        if (messageIds == null)
             throw new MailboxNotAuthenticatedException();
-        return messageList.stream().filter(item -> (includeDeleted || !item.isDeleted())).mapToLong(MailMessage::getFileSize).sum();
+        if (messageFiles != null)
+            return null;
+        String prefix = Long.toString(epoch, 36) + ".";
+        StringBuilder listing = new StringBuilder(undeletedCount * (prefix.length() + 12));
+        for (int i = deletedMessages.nextClearBit(0); i < messageIds.length; i = deletedMessages.nextClearBit(i + 1))
+            listing.append(i + 1).append(' ').append(prefix).append(messageIds[i]).append('\n');
+        return listing.toString();
     }
 
     /**
-     * Deletes the files for each message currently tagged for deletion. This operation cannot be undone, and for POP3
-     * should only be performed when the corresponding session is complete. If the corresponding messages have not been
-     * loaded, this method performs no operation.
+     * Removes the deletion tag from every message tagged for deletion. Only the tagged messages are visited.
+     *
+     * @throws MailboxNotAuthenticatedException If this operation is attempted before loading the list of messages.
+     */
+    public void undeleteAll() throws MailboxNotAuthenticatedException {
+        if (messageIds == null)
+            throw new MailboxNotAuthenticatedException();
+        for (int i = deletedMessages.nextSetBit(0); i >= 0; i = deletedMessages.nextSetBit(i + 1))
+            setDeletedAt(i, false);
+    }
+
+    /**
+     * Deletes each message currently tagged for deletion. This operation cannot be undone, and for POP3 should only be
+     * performed when the corresponding session is complete. If the corresponding messages have not been loaded, this
+     * method performs no operation. The deletions are recorded in the mailbox index, so the messages are no longer
+     * listed once this method returns, and their content is removed later by the ReclamationWorker, so the time taken
+     * does not depend on the number of messages deleted.
      */
     public void deleteMessagesTaggedForDeletion() {
-        if (messageList == null)
+        if (messageIds == null || deletedMessages.isEmpty())
+            return;
+        long start = System.nanoTime();
+        deleteMessages();
+        DELETE_TIME.recordSince(start);
+    }
+
+    /**
+     * Deletes the messages tagged for deletion, from the store or as individual files.
+     */
+    private void deleteMessages() {
+        Set<Long> ids = new HashSet<>();
+        for (int i = deletedMessages.nextSetBit(0); i >= 0; i = deletedMessages.nextSetBit(i + 1))
+            ids.add(messageIds[i]);
+        if (ids.isEmpty())
             return;
-        for (MailMessage item : messageList) {
-            if (item.isDeleted())
-                //noinspection ResultOfMethodCallIgnored
-                item.getFile().delete();
+        if (messageFiles == null) {
+            try {
+                store.expunge(ids);
+            } catch (IOException e) {
+                Log.error("Error deleting messages from the mailbox of {}", user, e);
+                return;
+            }
+            MailboxCache.getInstance().invalidate(mailDirectory);
+            ReclamationWorker.getInstance().submit(store, ids);
+            return;
+        }
+        // Loaded without the index, so delete the listed files themselves
+        try {
+            index.markExpunged(ids);
+        } catch (IOException e) {
+            // The index can no longer be trusted, so have it rebuilt from the directory next time
+            index.invalidate();
+        }
+        MailboxCache.getInstance().invalidate(mailDirectory);
+        for (int i = deletedMessages.nextSetBit(0); i >= 0; i = deletedMessages.nextSetBit(i + 1))
+            //noinspection ResultOfMethodCallIgnored
+            messageFiles[i].delete();
+    }
+
+    /**
+     * Returns the id of a message from its file name.
+     *
+     * @param file The message file.
+     * @return The message id, or -1 if the file name is not a message id.
+     */
+    private static long getMessageId(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - MAIL_FILE_SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
         }
     }
 
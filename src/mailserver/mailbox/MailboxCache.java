@@ -0,0 +1,253 @@
+package mailserver.mailbox;
+
+import mailserver.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of loaded mailboxes, so a client that polls its mailbox every few minutes does not have the index
+ * read again on every login. Each entry is an immutable snapshot of a mailbox's message columns (see Mailbox), shared
+ * by every session that loads the mailbox while it is unchanged.
+ * <p>
+ * A snapshot is tagged with the size and modification time of the mailbox index when it was read. As every delivery
+ * and deletion updates the index, including those made by other processes (i.e., the SMTP server), a snapshot is only
+ * used while the index still has the same size and modification time; checking that takes a single file status call.
+ * Deliveries and deletions made by this process also discard the snapshot right away.
+ * <p>
+ * The cache holds at most <code>mailserver.mailboxCacheEntries</code> mailboxes (1024 by default) and
+ * <code>mailserver.mailboxCacheBytes</code> bytes of snapshots (64 MiB by default), evicting the least recently used
+ * mailboxes first. Set either limit to 0 to disable the cache.
+ */
+public class MailboxCache {
+
+    public static final int MAX_ENTRIES = Integer.getInteger("mailserver.mailboxCacheEntries", 1024);
+    public static final long MAX_BYTES = Long.getLong("mailserver.mailboxCacheBytes", 64 * 1024 * 1024);
+
+    private static final long RACY_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final MailboxCache instance = new MailboxCache();
+
+    private final LinkedHashMap<File, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private MailboxCache() {
+        Metrics metrics = Metrics.getInstance();
+        String labels = "cache=\"mailbox\"";
+        metrics.counter("mailserver_cache_hits_total", "Lookups found in the cache.", labels, this::getHitCount);
+        metrics.counter("mailserver_cache_misses_total", "Lookups not found in the cache.", labels, this::getMissCount);
+        metrics.counter("mailserver_cache_evictions_total", "Entries evicted from the cache to make room.", labels,
+                this::getEvictionCount);
+        metrics.gauge("mailserver_cache_bytes", "Size of the cached entries.", labels, this::getBytes);
+    }
+
+    /**
+     * Returns the cache shared by the whole process.
+     *
+     * @return The mailbox cache.
+     */
+    public static MailboxCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the current version of a mailbox's index, to tag or validate a snapshot. Must be read before the index,
+     * so a change made while the index is read makes the snapshot stale rather than hiding the change.
+     *
+     * @param mailDirectory The user's mail directory.
+     * @return The version of the index, or null if the index does not exist and the mailbox should not be cached.
+     */
+    static Version getVersion(File mailDirectory) {
+        if (MAX_ENTRIES <= 0 || MAX_BYTES <= 0)
+            return null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(
+                    new File(mailDirectory, MailboxIndex.INDEX_FILE_NAME).toPath(), BasicFileAttributes.class);
+            return new Version(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the snapshot of a mailbox, if it is cached and the index did not change since it was taken.
+     *
+     * @param mailDirectory The user's mail directory.
+     * @param version       The current version of the index, from <code>getVersion()</code>.
+     * @return The snapshot, or null if there is none that can be used.
+     */
+    synchronized Snapshot get(File mailDirectory, Version version) {
+        Snapshot snapshot = snapshots.get(mailDirectory.getAbsoluteFile());
+        if (snapshot == null || version == null || !snapshot.version.equals(version)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return snapshot;
+    }
+
+    /**
+     * Adds the snapshot of a mailbox to the cache, replacing any previous one, and evicts the least recently used
+     * snapshots if the cache is over its limits. Snapshots larger than the whole cache are not added, and neither are
+     * snapshots of an index modified very recently, as a change made right after it may not change its modification
+     * time, depending on the file system's timestamp granularity.
+     *
+     * @param mailDirectory The user's mail directory.
+     * @param snapshot      The snapshot, taken when the index had the snapshot's version.
+     */
+    synchronized void put(File mailDirectory, Snapshot snapshot) {
+        if (snapshot.version == null || snapshot.getBytes() > MAX_BYTES ||
+                TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - snapshot.version.modified < RACY_INTERVAL)
+            return;
+        Snapshot previous = snapshots.put(mailDirectory.getAbsoluteFile(), snapshot);
+        if (previous != null)
+            bytes -= previous.getBytes();
+        bytes += snapshot.getBytes();
+        Iterator<Snapshot> eldest = snapshots.values().iterator();
+        while (snapshots.size() > MAX_ENTRIES || bytes > MAX_BYTES) {
+            bytes -= eldest.next().getBytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Discards the snapshot of a mailbox, after a delivery or deletion.
+     *
+     * @param mailDirectory The user's mail directory.
+     */
+    synchronized void invalidate(File mailDirectory) {
+        Snapshot previous = snapshots.remove(mailDirectory.getAbsoluteFile());
+        if (previous != null)
+            bytes -= previous.getBytes();
+    }
+
+    /**
+     * Returns the fraction of lookups that were answered from the cache.
+     *
+     * @return The hit ratio, between 0 and 1, or 0 if there were no lookups.
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return The number of hits.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to read the index.
+     *
+     * @return The number of misses.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of snapshots evicted to keep the cache within its limits.
+     *
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of mailboxes currently cached.
+     *
+     * @return The number of snapshots.
+     */
+    public synchronized int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Returns the estimated memory used by the cached snapshots.
+     *
+     * @return The size of the snapshots, in bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("MailboxCache[entries=%d, bytes=%d, hits=%d, misses=%d, hitRatio=%.3f, evictions=%d]",
+                snapshots.size(), bytes, hits, misses, getHitRatio(), evictions);
+    }
+
+    /**
+     * The version of a mailbox index: its size and modification time.
+     */
+    static class Version {
+
+        private final long size;
+        private final long modified;
+
+        Version(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Version && ((Version) other).size == size &&
+                    ((Version) other).modified == modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modified);
+        }
+    }
+
+    /**
+     * The message columns of a loaded mailbox. The arrays are shared by every session using the snapshot, and must not
+     * be modified.
+     */
+    static class Snapshot {
+
+        private static final int BYTES_PER_MESSAGE = 8 + 8 + 4 + 8 + 4;
+        private static final int OVERHEAD = 128;
+
+        final Version version;
+        final long epoch;
+        final long[] ids;
+        final long[] sizes;
+        final int[] segments;
+        final long[] offsets;
+        final int[] headerSizes;
+        final long totalSize;
+
+        Snapshot(Version version, long epoch, long[] ids, long[] sizes, int[] segments, long[] offsets,
+                 int[] headerSizes, long totalSize) {
+            this.version = version;
+            this.epoch = epoch;
+            this.ids = ids;
+            this.sizes = sizes;
+            this.segments = segments;
+            this.offsets = offsets;
+            this.headerSizes = headerSizes;
+            this.totalSize = totalSize;
+        }
+
+        long getBytes() {
+            return OVERHEAD + (long) ids.length * BYTES_PER_MESSAGE;
+        }
+    }
+}
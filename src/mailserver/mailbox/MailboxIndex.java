@@ -0,0 +1,573 @@
+package mailserver.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent index of the messages in a user's mail directory, so the mailbox can be loaded without listing the
+ * directory or querying the size of each message file. The index is a binary file with a short header followed by
+ * fixed-width records, one per delivered message, holding the message id, its size in bytes, a set of flags, where
+ * its content is stored (a segment number and offset, for storage backends that keep several messages per file) and
+ * the size of its headers, so a message's headers can be sent without searching for their end. Messages are appended
+ * to the index as they are delivered, flagged as expunged when they are deleted, and flagged as reclaimed once their
+ * content is actually removed, which may happen later in the background. The header also keeps the next message id to
+ * be allocated, so ids are never reused, even after the messages with the highest ids are deleted, and an epoch set
+ * when the index is created, which tells the message ids apart from those of any earlier index of the same directory
+ * (see <code>getEpoch()</code>).
+ * <p>
+ * The index is only a cache of the directory's content: if it is missing or damaged it is rebuilt by scanning the
+ * directory, as done by the message store that owns the index. Changes are made while holding a lock on the index
+ * file, so deliveries and deletions from different processes (i.e., the SMTP and POP3 servers) do not interfere with
+ * each other.
+ */
+public class MailboxIndex {
+
+    public static final String INDEX_FILE_NAME = "mailbox.idx";
+
+    private static final int MAGIC = 0x4D494458; // "MIDX"
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 28;
+    private static final int RECORD_SIZE = 36;
+    private static final int FLAG_EXPUNGED = 1;
+    private static final int FLAG_RECLAIMED = 2;
+    private static final int HEADER_DIRTY = 1;
+
+    private static final ConcurrentHashMap<File, ReentrantLock> processLocks = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<File, AtomicLong> sequences = new ConcurrentHashMap<>();
+
+    private final File mailDirectory;
+    private final File indexFile;
+    private final Scanner scanner;
+    private volatile long epoch = -1;
+
+    /**
+     * Creates an index object for a user's mail directory. The index file itself is only read or created when needed.
+     *
+     * @param mailDirectory The user's mail directory.
+     * @param scanner       Lists the messages stored in the directory, to rebuild the index when needed.
+     */
+    public MailboxIndex(File mailDirectory, Scanner scanner) {
+        this.mailDirectory = mailDirectory;
+        this.indexFile = new File(mailDirectory, INDEX_FILE_NAME).getAbsoluteFile();
+        this.scanner = scanner;
+    }
+
+    /**
+     * Returns the messages in the mailbox that were not expunged, in the order they were delivered. Rebuilds the index
+     * from the directory if it is missing or damaged.
+     *
+     * @return A list of index entries, possibly empty.
+     * @throws IOException If there is an error reading or rebuilding the index.
+     */
+    public List<Entry> read() throws IOException {
+        if (!mailDirectory.isDirectory())
+            return new ArrayList<>();
+        return withLock(channel -> {
+            List<Entry> entries = readEntries(channel);
+            if (entries == null)
+                entries = rebuild(channel);
+            epoch = readEpoch(channel);
+            entries.removeIf(Entry::isExpunged);
+            return entries;
+        });
+    }
+
+    /**
+     * Returns the epoch of the index, as of the last <code>read()</code>: the time the index was created. Message ids
+     * are never reused while the index exists, and the epoch changes if the index is ever recreated, so a message id
+     * qualified by the epoch always refers to the same message.
+     *
+     * @return The epoch, in milliseconds since 1970, or -1 if the index was not read yet.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Checks if the index has a record for a message id, even if the message was expunged. Rebuilds the index from the
+     * directory if it is missing or damaged.
+     *
+     * @param id The message id.
+     * @return true if the message was added to the index, and false otherwise.
+     * @throws IOException If there is an error reading or rebuilding the index.
+     */
+    public boolean contains(long id) throws IOException {
+        return withLock(channel -> {
+            List<Entry> entries = readEntries(channel);
+            if (entries == null)
+                entries = rebuild(channel);
+            return entries.stream().anyMatch(entry -> entry.getId() == id);
+        });
+    }
+
+    /**
+     * Allocates a new message id. Ids come from an in-memory sequence shared by every session in the process, which is
+     * seeded from the index the first time it is used, so allocating an id does not access the disk. The sequence is
+     * persisted as messages are appended to the index.
+     *
+     * @return A message id that was not allocated before.
+     * @throws IOException If there is an error reading the index to seed the sequence.
+     */
+    public long allocateId() throws IOException {
+        AtomicLong sequence = sequences.get(indexFile);
+        if (sequence == null) {
+            long seed = withLock(channel -> {
+                if (readNextId(channel) < 0)
+                    rebuild(channel);
+                return readNextId(channel);
+            });
+            sequences.putIfAbsent(indexFile, new AtomicLong(seed));
+            sequence = sequences.get(indexFile);
+        }
+        return sequence.getAndIncrement();
+    }
+
+    /**
+     * Records a newly delivered message stored in its own file. The message file must already be complete. If the
+     * index does not exist yet, it is built from the directory, which already includes the new message.
+     *
+     * @param id         The message id, i.e., the number in the message's file name.
+     * @param size       The size of the message file, in bytes.
+     * @param headerSize The size of the message's headers, including the empty line that ends them, or -1 if unknown.
+     * @throws IOException If there is an error updating the index.
+     */
+    public void append(long id, long size, int headerSize) throws IOException {
+        append(id, size, -1, 0, headerSize);
+    }
+
+    /**
+     * Records a newly delivered message. The message content must already be complete. If the index does not exist
+     * yet, it is built from the directory, which already includes the new message.
+     *
+     * @param id         The message id.
+     * @param size       The size of the message, in bytes.
+     * @param segment    The segment where the message is stored, or -1 if it is stored in its own file.
+     * @param offset     The offset of the message content in the segment.
+     * @param headerSize The size of the message's headers, including the empty line that ends them, or -1 if unknown.
+     * @throws IOException If there is an error updating the index.
+     */
+    public void append(long id, long size, int segment, long offset, int headerSize) throws IOException {
+        withLock(channel -> {
+            long nextId = readNextId(channel);
+            if (nextId < 0) {
+                rebuild(channel);
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            putRecord(record, new Entry(id, size, 0, segment, offset, headerSize));
+            record.flip();
+            channel.write(record, channel.size());
+            if (id >= nextId)
+                writeNextId(channel, id + 1);
+            return null;
+        });
+    }
+
+    /**
+     * Flags a set of messages as expunged, so they are no longer listed, and forces the change to disk. Should be
+     * called before the corresponding content is deleted; the records are kept until the content is reclaimed (see
+     * <code>markReclaimed()</code>), so deletions interrupted by a restart can be completed.
+     *
+     * @param ids The ids of the messages being deleted.
+     * @throws IOException If there is an error updating the index.
+     */
+    public void markExpunged(Set<Long> ids) throws IOException {
+        updateFlags(ids, FLAG_EXPUNGED, true);
+    }
+
+    /**
+     * Flags a set of expunged messages as reclaimed, once their content was deleted. Once most records in the index
+     * are reclaimed, the index is compacted.
+     *
+     * @param ids The ids of the deleted messages.
+     * @throws IOException If there is an error updating the index.
+     */
+    public void markReclaimed(Set<Long> ids) throws IOException {
+        updateFlags(ids, FLAG_EXPUNGED | FLAG_RECLAIMED, false);
+    }
+
+    /**
+     * Returns the messages that were expunged but whose content was not reclaimed yet, e.g., because the process
+     * stopped before it could delete them.
+     *
+     * @return A list of index entries, possibly empty.
+     * @throws IOException If there is an error reading or rebuilding the index.
+     */
+    public List<Entry> readUnreclaimed() throws IOException {
+        if (!mailDirectory.isDirectory())
+            return new ArrayList<>();
+        return withLock(channel -> {
+            List<Entry> entries = readEntries(channel);
+            if (entries == null)
+                entries = rebuild(channel);
+            entries.removeIf(entry -> !entry.isExpunged() || entry.isReclaimed());
+            return entries;
+        });
+    }
+
+    /**
+     * Sets flags on the records of a set of messages, and compacts the index once most records are reclaimed.
+     */
+    private void updateFlags(Set<Long> ids, int set, boolean force) throws IOException {
+        if (ids.isEmpty())
+            return;
+        withLock(channel -> {
+            List<Entry> entries = readEntries(channel);
+            if (entries == null)
+                entries = rebuild(channel);
+            int reclaimed = 0;
+            ByteBuffer flags = ByteBuffer.allocate(4);
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                if ((entry.flags & set) != set && ids.contains(entry.getId())) {
+                    entry.flags |= set;
+                    flags.clear();
+                    flags.putInt(entry.flags).flip();
+                    channel.write(flags, HEADER_SIZE + (long) i * RECORD_SIZE + 16);
+                }
+                if (entry.isReclaimed())
+                    reclaimed++;
+            }
+            if (reclaimed * 2 > entries.size())
+                compact(channel, entries, readNextId(channel, entries));
+            if (force)
+                channel.force(false);
+            return null;
+        });
+    }
+
+    /**
+     * Updates where a set of messages is stored, after their content was moved (e.g., when a segment is compacted).
+     * Messages that are no longer in the index are ignored.
+     *
+     * @param moved Entries with the ids of the moved messages and their new segments and offsets.
+     * @throws IOException If there is an error updating the index.
+     */
+    public void relocate(List<Entry> moved) throws IOException {
+        if (moved.isEmpty())
+            return;
+        Map<Long, Entry> locations = new HashMap<>();
+        for (Entry entry : moved)
+            locations.put(entry.getId(), entry);
+        withLock(channel -> {
+            List<Entry> entries = readEntries(channel);
+            if (entries == null)
+                entries = rebuild(channel);
+            ByteBuffer location = ByteBuffer.allocate(12);
+            for (int i = 0; i < entries.size(); i++) {
+                Entry target = locations.get(entries.get(i).getId());
+                if (target == null)
+                    continue;
+                location.clear();
+                location.putInt(target.segment).putLong(target.offset).flip();
+                channel.write(location, HEADER_SIZE + (long) i * RECORD_SIZE + 20);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Discards the index records, so the index is rebuilt from the directory the next time it is used. Used when the
+     * index could not be updated and may no longer match the directory. The index is flagged as dirty rather than
+     * deleted, so its epoch is kept and the rebuild is not mistaken for the first one; if even that fails, the index
+     * file is deleted.
+     */
+    public void invalidate() {
+        try {
+            withLock(channel -> {
+                writeHeaderFlags(channel, HEADER_DIRTY);
+                return null;
+            });
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Reads all records in the index, including expunged ones.
+     *
+     * @return The list of entries, or null if the index is empty, incomplete or damaged.
+     */
+    private List<Entry> readEntries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE || (size - HEADER_SIZE) % RECORD_SIZE != 0 || size > Integer.MAX_VALUE)
+            return null;
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        readFully(channel, buffer);
+        if (buffer.limit() != size || buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != 0)
+            return null;
+        buffer.getLong(); // next id
+        buffer.getLong(); // epoch
+        List<Entry> entries = new ArrayList<>((int) ((size - HEADER_SIZE) / RECORD_SIZE));
+        while (buffer.hasRemaining())
+            entries.add(new Entry(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                    buffer.getLong(), buffer.getInt()));
+        return entries;
+    }
+
+    /**
+     * Reads the next message id from the header, checking that the index has a valid header and a whole number of
+     * records.
+     *
+     * @return The next message id, or -1 if the index is empty, incomplete or damaged.
+     */
+    private long readNextId(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE || (size - HEADER_SIZE) % RECORD_SIZE != 0)
+            return -1;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header);
+        if (header.limit() != HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION ||
+                header.getInt() != 0)
+            return -1;
+        return header.getLong();
+    }
+
+    /**
+     * Reads the epoch from the header, even if the index is damaged or being rewritten.
+     *
+     * @return The epoch, or -1 if the index has no valid header.
+     */
+    private static long readEpoch(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header);
+        if (header.limit() != HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+            return -1;
+        return header.getLong(20);
+    }
+
+    /**
+     * Returns the next message id after a set of entries: the id in the header, unless it is damaged or lower than
+     * any of the ids in use, either in the entries or in the process's sequence.
+     */
+    private long readNextId(FileChannel channel, List<Entry> entries) throws IOException {
+        long nextId = Math.max(readNextId(channel), 0);
+        for (Entry entry : entries)
+            nextId = Math.max(nextId, entry.getId() + 1);
+        AtomicLong sequence = sequences.get(indexFile);
+        return sequence != null ? Math.max(nextId, sequence.get()) : nextId;
+    }
+
+    /**
+     * Recreates the index from the messages stored in the directory, ordered by message id. The scanner is told if the
+     * directory never had an index, i.e., the index has no header with an epoch.
+     *
+     * @return The entries written to the new index.
+     */
+    private List<Entry> rebuild(FileChannel channel) throws IOException {
+        List<Entry> entries = scanner.scan(readEpoch(channel) < 0);
+        entries.sort(Comparator.comparingLong(Entry::getId));
+        writeAll(channel, entries, readNextId(channel, entries));
+        return entries;
+    }
+
+    /**
+     * Rewrites the index keeping only the records whose content was not reclaimed.
+     */
+    private void compact(FileChannel channel, List<Entry> entries, long nextId) throws IOException {
+        List<Entry> live = new ArrayList<>(entries);
+        live.removeIf(Entry::isReclaimed);
+        writeAll(channel, live, nextId);
+    }
+
+    /**
+     * Writes a complete index with the specified records, replacing the previous content. The index is flagged as
+     * dirty until the rewrite completes, so it is rebuilt from the directory if the process stops halfway through. The
+     * epoch is kept if the index already had one, and a new one is started otherwise.
+     */
+    private void writeAll(FileChannel channel, List<Entry> entries, long nextId) throws IOException {
+        long epoch = readEpoch(channel);
+        if (epoch < 0)
+            epoch = System.currentTimeMillis();
+        writeHeaderFlags(channel, HEADER_DIRTY);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * RECORD_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(HEADER_DIRTY).putLong(nextId).putLong(epoch);
+        for (Entry entry : entries)
+            putRecord(buffer, entry);
+        buffer.flip();
+        channel.truncate(buffer.limit());
+        while (buffer.hasRemaining())
+            channel.write(buffer, buffer.position());
+        writeHeaderFlags(channel, 0);
+    }
+
+    private static void writeHeaderFlags(FileChannel channel, int flags) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).putInt(flags);
+        buffer.flip();
+        channel.write(buffer, 8);
+    }
+
+    private static void writeNextId(FileChannel channel, long nextId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8).putLong(nextId);
+        buffer.flip();
+        channel.write(buffer, 12);
+    }
+
+    /**
+     * Fills the buffer with the content of the file, starting at the beginning of the file, and flips the buffer.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // keep reading until the buffer is full or the end of the file is reached
+        }
+        buffer.flip();
+    }
+
+    private static void putRecord(ByteBuffer buffer, Entry entry) {
+        buffer.putLong(entry.id).putLong(entry.size).putInt(entry.flags).putInt(entry.segment).putLong(entry.offset)
+                .putInt(entry.headerSize);
+    }
+
+    /**
+     * Runs an operation on the index file while holding both an in-process lock and a file lock, as file locks only
+     * exclude other processes.
+     */
+    private <T> T withLock(IndexOperation<T> operation) throws IOException {
+        ReentrantLock processLock = processLocks.computeIfAbsent(indexFile, f -> new ReentrantLock());
+        processLock.lock();
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                return operation.apply(channel);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    private interface IndexOperation<T> {
+        T apply(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Lists the messages stored in a mail directory, to rebuild its index.
+     */
+    @FunctionalInterface
+    public interface Scanner {
+        /**
+         * Lists the messages stored in the directory, in any order.
+         *
+         * @param created true if the index is being built for the first time, so the directory may hold messages
+         *                stored before the index existed, and false if an existing index is being rebuilt.
+         * @return A modifiable list with an entry for each message.
+         * @throws IOException If there is an error reading the directory.
+         */
+        List<Entry> scan(boolean created) throws IOException;
+    }
+
+    /**
+     * An individual message record in the index.
+     */
+    public static class Entry {
+
+        private final long id;
+        private final long size;
+        private int flags;
+        private final int segment;
+        private final long offset;
+        private final int headerSize;
+
+        /**
+         * Creates an entry for a message.
+         *
+         * @param id         The message id.
+         * @param size       The size of the message, in bytes.
+         * @param segment    The segment where the message is stored, or -1 if it is stored in its own file.
+         * @param offset     The offset of the message content in the segment.
+         * @param headerSize The size of the message's headers, or -1 if unknown.
+         */
+        public Entry(long id, long size, int segment, long offset, int headerSize) {
+            this(id, size, 0, segment, offset, headerSize);
+        }
+
+        Entry(long id, long size, int flags, int segment, long offset, int headerSize) {
+            this.id = id;
+            this.size = size;
+            this.flags = flags;
+            this.segment = segment;
+            this.offset = offset;
+            this.headerSize = headerSize;
+        }
+
+        /**
+         * Returns the message id, which is the number in the message's file name.
+         *
+         * @return The message id.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns the size of the message file.
+         *
+         * @return The size of the message, in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the segment where the message is stored.
+         *
+         * @return The segment number, or -1 if the message is stored in its own file.
+         */
+        public int getSegment() {
+            return segment;
+        }
+
+        /**
+         * Returns the offset of the message content in its segment.
+         *
+         * @return The offset, in bytes, or 0 if the message is stored in its own file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the size of the message's headers, including the empty line that separates them from the body.
+         *
+         * @return The size of the headers, in bytes, or -1 if it was not recorded (e.g., the index was rebuilt).
+         */
+        public int getHeaderSize() {
+            return headerSize;
+        }
+
+        /**
+         * Returns true if the message was deleted from the mailbox.
+         *
+         * @return true if the message was expunged, and false otherwise.
+         */
+        public boolean isExpunged() {
+            return (flags & FLAG_EXPUNGED) != 0;
+        }
+
+        /**
+         * Returns true if the message's content was deleted after the message was expunged.
+         *
+         * @return true if the message was reclaimed, and false otherwise.
+         */
+        public boolean isReclaimed() {
+            return (flags & FLAG_RECLAIMED) != 0;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package mailserver.mailbox;
+
+import mailserver.log.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Exclusive locks on users' maildrops, as required by POP3 (RFC 1939): once a session is authenticated, no other POP3
+ * session may open the same maildrop until it ends, so two sessions never delete the same messages.
+ * <p>
+ * A lock is not tied to a thread, as a session may be handled by different threads over its lifetime, and is held
+ * until it is released explicitly. Locks held in the process are tracked in a table split into
+ * <code>mailserver.maildropLockStripes</code> stripes (64 by default) by the hash of the user name, so sessions of
+ * different users rarely contend, and no lock is held while waiting. A file lock on the maildrop's
+ * <code>maildrop.lock</code> file extends the exclusion to other processes.
+ * <p>
+ * Deliveries do not take the lock, so they are never blocked by POP3 sessions and never block them: a session works on
+ * the snapshot of the mailbox taken when it was loaded, and messages delivered in the meantime are simply not part of
+ * it (see Mailbox).
+ */
+public class MaildropLocks {
+
+    public static final int STRIPES = Integer.highestOneBit(
+            Math.max(1, Integer.getInteger("mailserver.maildropLockStripes", 64)));
+    public static final String LOCK_FILE_NAME = "maildrop.lock";
+
+    private static final MaildropLocks instance = new MaildropLocks();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private MaildropLocks() {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * Returns the lock table shared by the whole process.
+     *
+     * @return The maildrop locks.
+     */
+    public static MaildropLocks getInstance() {
+        return instance;
+    }
+
+    /**
+     * Locks a user's maildrop, unless it is already locked by this or another process. Never waits.
+     *
+     * @param user          The user's address, as written in the users database.
+     * @param mailDirectory The user's mail directory, which is created if it does not exist.
+     * @return The lock, to be released when the session ends, or null if the maildrop is already locked.
+     * @throws IOException If the lock file cannot be created or locked.
+     */
+    Lock tryLock(String user, File mailDirectory) throws IOException {
+        String key = user.toLowerCase(Locale.ROOT);
+        Stripe stripe = stripes[spread(key.hashCode()) & (STRIPES - 1)];
+        synchronized (stripe) {
+            if (!stripe.held.add(key))
+                return null;
+        }
+        FileChannel channel = null;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            mailDirectory.mkdirs();
+            channel = FileChannel.open(new File(mailDirectory, LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            FileLock fileLock = channel.tryLock();
+            if (fileLock != null)
+                return new Lock(stripe, key, channel);
+            channel.close();
+        } catch (IOException | RuntimeException e) {
+            if (channel != null)
+                channel.close();
+            release(stripe, key);
+            throw e;
+        }
+        release(stripe, key);
+        return null;
+    }
+
+    private static void release(Stripe stripe, String key) {
+        synchronized (stripe) {
+            stripe.held.remove(key);
+        }
+    }
+
+    /**
+     * Spreads the bits of a hash code, so user names that only differ in their last characters use different stripes.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The users whose maildrops are locked, for one stripe of the table.
+     */
+    private static class Stripe {
+        final Set<String> held = new HashSet<>();
+    }
+
+    /**
+     * A lock held on a maildrop. May be released from any thread; releasing it more than once has no effect.
+     */
+    public static class Lock implements Closeable {
+
+        private final Stripe stripe;
+        private final String key;
+        private final FileChannel channel;
+        private boolean released = false;
+
+        private Lock(Stripe stripe, String key, FileChannel channel) {
+            this.stripe = stripe;
+            this.key = key;
+            this.channel = channel;
+        }
+
+        /**
+         * Releases the lock, so other sessions may open the maildrop.
+         */
+        @Override
+        public synchronized void close() {
+            if (released)
+                return;
+            released = true;
+            try {
+                channel.close(); // also releases the file lock
+            } catch (IOException e) {
+                Log.error("Error releasing the maildrop lock of {}", key, e);
+            }
+            release(stripe, key);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package mailserver.mailbox;
+
+import mailserver.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of the content of frequently retrieved messages, such as a newsletter delivered to every user and
+ * downloaded by all of them within minutes. A message delivered to several mailboxes shares a single file (see
+ * Mailbox), so its content is cached once for all of them. The content is kept in direct buffers, outside the heap,
+ * and sent to the client straight from the buffer.
+ * <p>
+ * Content is identified by the file that holds it (its file system identity, not its name), and the content's offset
+ * and size in the file, so a replaced file is never served from the cache. A message file is also identified by its
+ * modification time, so a file changed in place is not either. A segment (see SegmentMessageStore) changes every time
+ * a message is appended to it, but its records are never rewritten, so its modification time is left out: a cached
+ * message stays valid while messages are delivered to the same segment, until the segment is compacted.
+ * A message is only cached the second time it is requested, so messages retrieved once do not displace hot ones.
+ * <p>
+ * The cache holds at most <code>mailserver.contentCacheBytes</code> bytes (32 MiB by default) of messages of up to
+ * <code>mailserver.contentCacheMaxMessageSize</code> bytes each (1 MiB by default), evicting the least recently used
+ * messages first. Set the size to 0 to disable the cache.
+ */
+public class MessageContentCache {
+
+    public static final long MAX_BYTES = Long.getLong("mailserver.contentCacheBytes", 32 * 1024 * 1024);
+    public static final long MAX_MESSAGE_SIZE = Long.getLong("mailserver.contentCacheMaxMessageSize", 1024 * 1024);
+
+    private static final int MAX_CANDIDATES = 4096;
+
+    private static final MessageContentCache instance = new MessageContentCache();
+
+    private final LinkedHashMap<Key, ByteBuffer> contents = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Boolean> candidates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private MessageContentCache() {
+        Metrics metrics = Metrics.getInstance();
+        String labels = "cache=\"content\"";
+        metrics.counter("mailserver_cache_hits_total", "Lookups found in the cache.", labels, this::getHitCount);
+        metrics.counter("mailserver_cache_misses_total", "Lookups not found in the cache.", labels, this::getMissCount);
+        metrics.counter("mailserver_cache_evictions_total", "Entries evicted from the cache to make room.", labels,
+                this::getEvictionCount);
+        metrics.gauge("mailserver_cache_bytes", "Size of the cached entries.", labels, this::getBytes);
+    }
+
+    /**
+     * Returns the cache shared by the whole process.
+     *
+     * @return The message content cache.
+     */
+    public static MessageContentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the content of a message from the cache. If the message is not cached but was requested before, it is
+     * read into the cache.
+     *
+     * @param file     The file that holds the message.
+     * @param offset   The offset of the message in the file.
+     * @param size     The size of the message, in bytes.
+     * @param appended true if the file is a segment, whose records are only appended, and false if the file may be
+     *                 changed in place.
+     * @return A read-only buffer with the message content, or null if the message should be read from the file.
+     */
+    ByteBuffer get(File file, long offset, long size, boolean appended) {
+        if (MAX_BYTES <= 0 || size > MAX_MESSAGE_SIZE || size > MAX_BYTES || size > Integer.MAX_VALUE)
+            return null;
+        Key key;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            long modified = appended ? 0 : attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            key = new Key(getIdentity(file, attributes), modified, offset, size);
+        } catch (IOException e) {
+            return null; // the caller reports the missing message
+        }
+        synchronized (this) {
+            ByteBuffer content = contents.get(key);
+            if (content != null) {
+                hits++;
+                return content.duplicate();
+            }
+            misses++;
+            if (candidates.put(key, Boolean.TRUE) == null)
+                return null; // first request, not hot yet
+        }
+        ByteBuffer content = read(file, offset, (int) size);
+        if (content == null)
+            return null;
+        synchronized (this) {
+            candidates.remove(key);
+            ByteBuffer previous = contents.put(key, content);
+            if (previous != null)
+                bytes -= previous.capacity();
+            bytes += content.capacity();
+            Iterator<ByteBuffer> eldest = contents.values().iterator();
+            while (bytes > MAX_BYTES) {
+                bytes -= eldest.next().capacity();
+                eldest.remove();
+                evictions++;
+            }
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Removes the cached content of a file that is about to be deleted, such as a compacted segment, whose identity
+     * may be given to a new file once it is deleted.
+     *
+     * @param file The file, which must still exist.
+     */
+    void invalidate(File file) {
+        Object identity;
+        try {
+            identity = getIdentity(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        } catch (IOException e) {
+            return; // nothing was cached from a file that cannot be read
+        }
+        synchronized (this) {
+            candidates.keySet().removeIf(key -> key.file.equals(identity));
+            Iterator<Map.Entry<Key, ByteBuffer>> entries = contents.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Key, ByteBuffer> entry = entries.next();
+                if (entry.getKey().file.equals(identity)) {
+                    bytes -= entry.getValue().capacity();
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private static Object getIdentity(File file, BasicFileAttributes attributes) {
+        return attributes.fileKey() != null ? attributes.fileKey() : file.getAbsolutePath();
+    }
+
+    /**
+     * Reads the content of a message into a new direct buffer.
+     *
+     * @return A read-only buffer with the content, or null if the file is shorter than expected or cannot be read.
+     */
+    private static ByteBuffer read(File file, long offset, int size) {
+        ByteBuffer content = ByteBuffer.allocateDirect(size);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (channel.read(content, offset + content.position()) < 0)
+                    return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the fraction of requests for cacheable messages that were answered from the cache.
+     *
+     * @return The hit ratio, between 0 and 1, or 0 if there were no requests.
+     */
+    public synchronized double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return The number of hits.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of requests for cacheable messages that were not answered from the cache.
+     *
+     * @return The number of misses.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of messages evicted to keep the cache within its size.
+     *
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the total size of the cached messages.
+     *
+     * @return The size of the cached content, in bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("MessageContentCache[entries=%d, bytes=%d, hits=%d, misses=%d, hitRatio=%.3f, " +
+                "evictions=%d]", contents.size(), bytes, hits, misses, getHitRatio(), evictions);
+    }
+
+    /**
+     * Identifies the content of a message: the file, its modification time (or 0 for a segment), and the region of the
+     * file.
+     */
+    private static class Key {
+
+        private final Object file;
+        private final long modified;
+        private final long offset;
+        private final long size;
+
+        Key(Object file, long modified, long offset, long size) {
+            this.file = file;
+            this.modified = modified;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return file.equals(key.file) && modified == key.modified && offset == key.offset && size == key.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, modified, offset, size);
+        }
+    }
+}
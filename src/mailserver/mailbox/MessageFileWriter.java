@@ -0,0 +1,56 @@
+package mailserver.mailbox;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * FileWriter that stores the characters of a message in the stored format (see WireFormatEncoder): bare LF line
+ * endings are written as CRLF, and lines that start with a "." are dot-stuffed. Used for the messages written through
+ * MailWriter, which are given as plain text, so they can be sent to POP3 clients as stored, like the messages
+ * received by the SMTP server.
+ */
+class MessageFileWriter extends FileWriter {
+
+    private final WireFormatEncoder encoder = new WireFormatEncoder(true);
+
+    /**
+     * Creates a writer for a new message file.
+     *
+     * @param file The message file, which is created or truncated.
+     * @throws IOException If the file cannot be opened.
+     */
+    MessageFileWriter(File file) throws IOException {
+        super(file);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        int insert = encoder.escape(c);
+        if (insert >= 0)
+            super.write(insert);
+        super.write(c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int segment = off;
+        for (int i = off; i < end; i++) {
+            int insert = encoder.escape(cbuf[i]);
+            if (insert >= 0) {
+                super.write(cbuf, segment, i - segment);
+                super.write(insert);
+                segment = i;
+            }
+        }
+        super.write(cbuf, segment, end - segment);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        char[] chars = new char[len];
+        str.getChars(off, off + len, chars, 0);
+        write(chars, 0, len);
+    }
+}
@@ -0,0 +1,178 @@
+package mailserver.mailbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Locates the end of a message's headers, i.e., the empty line that separates them from the body, and the lines of
+ * the body, for the POP3 TOP command. The header size is found while a message is written (see Tracker) and kept in
+ * the mailbox index, so the stored content only needs to be searched for messages whose header size was not recorded.
+ * Lines may end with either CRLF or a bare LF.
+ */
+public final class MessageHeaders {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private MessageHeaders() {
+    }
+
+    /**
+     * Finds the size of a message's headers by reading the stored content.
+     *
+     * @param channel The channel with the message content.
+     * @param offset  The offset of the message in the channel.
+     * @param size    The size of the message, in bytes.
+     * @return The size of the headers, including the empty line that ends them, or the size of the message if it has
+     * no body.
+     * @throws IOException If there is an error reading the content.
+     */
+    public static long find(FileChannel channel, long offset, long size) throws IOException {
+        Tracker tracker = new Tracker();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position = 0;
+        while (position < size && tracker.headerSize < 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            int read = channel.read(buffer, offset + position);
+            if (read <= 0)
+                break;
+            tracker.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return tracker.headerSize >= 0 ? tracker.headerSize : size;
+    }
+
+    /**
+     * Finds the size of a message's headers by reading a complete message file, for a message whose header size was
+     * not found while it was written.
+     *
+     * @param content The message file.
+     * @param size    The size of the message, in bytes.
+     * @return The size of the headers, as for an index record (see <code>Tracker.getHeaderSize()</code>).
+     * @throws IOException If there is an error reading the file.
+     */
+    public static int find(Path content, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(content, StandardOpenOption.READ)) {
+            long headers = find(channel, 0, size);
+            return headers <= Integer.MAX_VALUE ? (int) headers : -1;
+        }
+    }
+
+    /**
+     * Finds the size of a message's headers in a buffer with the whole message.
+     *
+     * @param content The message content, from its position to its limit, which is not modified.
+     * @return The size of the headers, including the empty line that ends them, or the size of the message if it has
+     * no body.
+     */
+    public static long find(ByteBuffer content) {
+        boolean lineStart = true;
+        for (int i = content.position(); i < content.limit(); i++) {
+            byte b = content.get(i);
+            if (lineStart && b == '\n')
+                return i + 1 - content.position();
+            if (lineStart && b == '\r' && i + 1 < content.limit() && content.get(i + 1) == '\n')
+                return i + 2 - content.position();
+            lineStart = b == '\n';
+        }
+        return content.remaining();
+    }
+
+    /**
+     * Finds the end of a number of lines of stored content.
+     *
+     * @param channel The channel with the content.
+     * @param start   The position where the first line starts.
+     * @param end     The position where the content ends.
+     * @param lines   The number of lines.
+     * @return The position after the last of the lines, or the end of the content if it has fewer lines.
+     * @throws IOException If there is an error reading the content.
+     */
+    public static long skipLines(FileChannel channel, long start, long end, long lines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position = start;
+        while (lines > 0 && position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                return end;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n' && --lines == 0)
+                    return position + i + 1;
+            }
+            position += read;
+        }
+        return lines > 0 ? end : position;
+    }
+
+    /**
+     * Finds the end of a number of lines of content held in a buffer.
+     *
+     * @param content The content, which is not modified.
+     * @param start   The index where the first line starts.
+     * @param lines   The number of lines.
+     * @return The index after the last of the lines, or the buffer's limit if it has fewer lines.
+     */
+    public static int skipLines(ByteBuffer content, int start, long lines) {
+        int position = start;
+        while (lines > 0 && position < content.limit()) {
+            if (content.get(position++) == '\n')
+                lines--;
+        }
+        return position;
+    }
+
+    /**
+     * Finds the end of a message's headers as the message is written, without reading it back.
+     */
+    public static class Tracker {
+
+        private long written = 0;
+        private long headerSize = -1;
+        private boolean lineStart = true;
+        private boolean emptyLineCR = false;
+
+        /**
+         * Updates the tracker with the next bytes of the message.
+         *
+         * @param b   Array of bytes written.
+         * @param off Offset of the bytes in the array.
+         * @param len Number of bytes.
+         */
+        public void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len && headerSize < 0; i++)
+                update(b[i]);
+        }
+
+        /**
+         * Updates the tracker with the next byte of the message.
+         *
+         * @param b The byte written.
+         */
+        public void update(int b) {
+            if (headerSize >= 0)
+                return;
+            written++;
+            if (b == '\n' && (lineStart || emptyLineCR))
+                headerSize = written;
+            emptyLineCR = lineStart && b == '\r';
+            lineStart = b == '\n';
+        }
+
+        /**
+         * Returns the size of the headers of the message written so far.
+         *
+         * @param size The size of the complete message, in bytes.
+         * @return The size of the headers, including the empty line that ends them, the size of the message if it has
+         * no body, or -1 if it does not fit in an index record.
+         */
+        public int getHeaderSize(long size) {
+            long headers = headerSize >= 0 ? headerSize : size;
+            return headers <= Integer.MAX_VALUE ? (int) headers : -1;
+        }
+    }
+}
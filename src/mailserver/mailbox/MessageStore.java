@@ -0,0 +1,124 @@
+package mailserver.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Storage backend for the messages in a user's mail directory. Messages are identified by the ids allocated from the
+ * mailbox index, and are always written completely to a staging file before they are published into the store, so
+ * every backend shares the same delivery path (including the delivery journal) and only differs in how published
+ * messages are laid out on disk.
+ * <p>
+ * The backend is selected for the whole mail store with the <code>mailserver.storage</code> system property:
+ * <code>files</code> (the default) stores each message in its own file, and <code>segments</code> appends messages to
+ * large segment files (see SegmentMessageStore). A store of per-file messages can be switched to segments in place, as
+ * the segment backend still reads and deletes the messages stored in their own files.
+ */
+public interface MessageStore {
+
+    String STORAGE = System.getProperty("mailserver.storage", "files");
+
+    /**
+     * Returns the message store for a user's mail directory, using the backend selected for the mail store.
+     *
+     * @param mailDirectory The user's mail directory.
+     * @return The message store of the directory.
+     */
+    static MessageStore forDirectory(File mailDirectory) {
+        if (STORAGE.equalsIgnoreCase("segments"))
+            return new SegmentMessageStore(mailDirectory);
+        if (STORAGE.equalsIgnoreCase("files"))
+            return new FileMessageStore(mailDirectory);
+        throw new IllegalArgumentException("Unknown message storage: " + STORAGE);
+    }
+
+    /**
+     * Returns the index of the messages in the store.
+     *
+     * @return The mailbox index.
+     */
+    MailboxIndex getIndex();
+
+    /**
+     * Lists the messages in the store that were not deleted, in the order they were delivered.
+     *
+     * @return A list of index entries, possibly empty.
+     * @throws IOException If the messages cannot be listed.
+     */
+    List<MailboxIndex.Entry> list() throws IOException;
+
+    /**
+     * Checks if a message was published into the store, even if it was deleted since.
+     *
+     * @param id The message id.
+     * @return true if the message was published, and false otherwise.
+     * @throws IOException If the store cannot be checked.
+     */
+    boolean contains(long id) throws IOException;
+
+    /**
+     * Publishes a complete message into the store. Once this method returns, the message is listed by the store.
+     *
+     * @param content    The file with the message content.
+     * @param id         The message id.
+     * @param size       The size of the message, in bytes.
+     * @param headerSize The size of the message's headers (see MessageHeaders), or -1 if unknown.
+     * @param move       true if the content file is a staging file owned by the delivery, which may be moved into the
+     *                   store or is deleted; false if it must be left unchanged, e.g., because it is shared by several
+     *                   deliveries.
+     * @return The file that now holds the message, to be forced to disk when the delivery journal is checkpointed.
+     * @throws IOException If the message cannot be published.
+     */
+    File publish(Path content, long id, long size, int headerSize, boolean move) throws IOException;
+
+    /**
+     * Replaces the stored content of a published message, e.g., when the delivery journal finds that the content did
+     * not reach the disk before a crash. The message keeps its id and its position in the mailbox, but the store may
+     * move it, updating the index.
+     *
+     * @param entry   The index entry of the message.
+     * @param content A staging file with the complete message content, which is moved into the store or deleted.
+     * @return The file that now holds the message, to be forced to disk.
+     * @throws IOException If the content cannot be replaced.
+     */
+    File repair(MailboxIndex.Entry entry, Path content) throws IOException;
+
+    /**
+     * Returns the file that holds the content of a message. The content starts at the entry's offset.
+     *
+     * @param entry The index entry of the message.
+     * @return A File object for the message's file or segment, which may no longer exist.
+     */
+    File locate(MailboxIndex.Entry entry);
+
+    /**
+     * Opens the file that holds the content of a message. The content starts at the entry's offset.
+     *
+     * @param entry The index entry of the message.
+     * @return A FileChannel open for reading, which must be closed by the caller.
+     * @throws IOException If the message no longer exists or cannot be opened.
+     */
+    FileChannel open(MailboxIndex.Entry entry) throws IOException;
+
+    /**
+     * Deletes a set of messages from the mailbox, durably. The messages are no longer listed once this method returns,
+     * but their content is only removed by <code>reclaim()</code>, which may be called later.
+     *
+     * @param ids The ids of the messages to delete.
+     * @throws IOException If the deletion cannot be recorded.
+     */
+    void expunge(Set<Long> ids) throws IOException;
+
+    /**
+     * Removes the content of a set of expunged messages, and records that it was removed. Ids of messages that were not
+     * expunged, or whose content was already removed, are ignored.
+     *
+     * @param ids The ids of the expunged messages.
+     * @throws IOException If the content cannot be removed.
+     */
+    void reclaim(Set<Long> ids) throws IOException;
+}
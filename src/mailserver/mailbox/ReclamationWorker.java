@@ -0,0 +1,118 @@
+package mailserver.mailbox;
+
+import mailserver.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background worker that removes the content of deleted messages. When a POP3 session ends, its deletions are only
+ * recorded in the mailbox index (which is forced to disk), so the session does not wait for the files to be deleted,
+ * and other sessions no longer list the messages. The content is then removed by a small pool of low-priority threads,
+ * in batches of <code>mailserver.reclaimBatchSize</code> messages (256 by default), at most
+ * <code>mailserver.reclaimRate</code> messages per second (2000 by default, or 0 for no limit), so a large expunge does
+ * not compete with the sessions for the disk. The number of threads is set with <code>mailserver.reclaimThreads</code>
+ * (1 by default).
+ * <p>
+ * Deletions still pending when the process stops remain flagged in the index, and are submitted again by
+ * <code>recover()</code> when a server starts.
+ */
+public class ReclamationWorker {
+
+    public static final int BATCH_SIZE = Math.max(1, Integer.getInteger("mailserver.reclaimBatchSize", 256));
+    public static final int RATE = Integer.getInteger("mailserver.reclaimRate", 2000);
+    public static final int THREADS = Math.max(1, Integer.getInteger("mailserver.reclaimThreads", 1));
+
+    private static final ReclamationWorker instance = new ReclamationWorker();
+
+    private final ThreadPoolExecutor executor;
+    private long nextBatchTime = System.nanoTime();
+
+    private ReclamationWorker() {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task -> {
+                    Thread thread = new Thread(task, "reclamation-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    /**
+     * Returns the worker shared by the whole process.
+     *
+     * @return The reclamation worker.
+     */
+    public static ReclamationWorker getInstance() {
+        return instance;
+    }
+
+    /**
+     * Submits the removal of the content of a set of expunged messages. Returns right away; the messages are removed in
+     * batches by the worker threads.
+     *
+     * @param store The message store where the messages were expunged.
+     * @param ids   The ids of the expunged messages.
+     */
+    public void submit(MessageStore store, Set<Long> ids) {
+        List<Long> pending = new ArrayList<>(ids);
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            Set<Long> batch = new HashSet<>(pending.subList(start, Math.min(pending.size(), start + BATCH_SIZE)));
+            executor.execute(() -> reclaim(store, batch));
+        }
+    }
+
+    /**
+     * Submits the deletions left pending by a previous process in every mailbox of the mail store. Should be called by
+     * a server that deletes messages when it starts.
+     */
+    public void recover() {
+        File[] directories = Mailbox.USER_MAIL_BASE_DIRECTORY.listFiles(f -> f.isDirectory() &&
+                !f.getName().startsWith("."));
+        if (directories == null)
+            return;
+        for (File directory : directories) {
+            MessageStore store = MessageStore.forDirectory(directory);
+            try {
+                Set<Long> ids = new HashSet<>();
+                for (MailboxIndex.Entry entry : store.getIndex().readUnreclaimed())
+                    ids.add(entry.getId());
+                submit(store, ids);
+            } catch (IOException e) {
+                Log.error("Error reading the pending deletions in {}", directory, e);
+            }
+        }
+    }
+
+    /**
+     * Removes one batch of messages, after waiting for the rate limit.
+     */
+    private void reclaim(MessageStore store, Set<Long> batch) {
+        if (RATE > 0) {
+            long now = System.nanoTime();
+            long start;
+            synchronized (this) {
+                start = Math.max(now, nextBatchTime);
+                nextBatchTime = start + TimeUnit.SECONDS.toNanos(batch.size()) / RATE;
+            }
+            while (start - System.nanoTime() > 0)
+                LockSupport.parkNanos(start - System.nanoTime());
+        }
+        try {
+            store.reclaim(batch);
+        } catch (IOException | RuntimeException e) {
+            // The messages remain flagged in the index, so they are reclaimed again on the next recovery
+            Log.error("Error removing deleted messages", e);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package mailserver.mailbox;
+
+import mailserver.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message store that appends messages to large segment files, so a mailbox takes a handful of files regardless of the
+ * number of messages. Segments are kept in the <code>segments</code> subdirectory of the user's mail directory and are
+ * numbered; messages are appended to the highest-numbered segment until it reaches
+ * <code>mailserver.segmentSize</code> bytes (64 MiB by default), and then a new segment is started. The mailbox index
+ * records the segment and offset of each message, so a message is read without scanning its segment.
+ * <p>
+ * Each record in a segment has a short header with the message id and length, followed by the content, so the index
+ * can be rebuilt from the segments alone. A record is never rewritten once appended. Reclaiming a deleted message
+ * appends a tombstone record for it to its segment. Once more than half of a segment is taken by deleted messages, a
+ * background thread compacts it, copying the remaining messages to new segments and deleting the old one. Messages
+ * stored in their own files by FileMessageStore are still read and deleted as before, so an existing mail store can
+ * be switched to segments in place.
+ */
+public class SegmentMessageStore extends FileMessageStore {
+
+    public static final long SEGMENT_SIZE = Long.getLong("mailserver.segmentSize", 64 * 1024 * 1024);
+    public static final String SEGMENT_DIRECTORY_NAME = "segments";
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String LOCK_FILE_NAME = "segments.lock";
+    private static final int RECORD_MAGIC = 0x4D534547; // "MSEG"
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int TYPE_MESSAGE = 1;
+    private static final int TYPE_TOMBSTONE = 2;
+
+    private static final ConcurrentHashMap<File, ReentrantLock> processLocks = new ConcurrentHashMap<>();
+    private static final Set<File> compactionsScheduled = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "segment-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final File segmentDirectory;
+
+    /**
+     * Creates the message store for a user's mail directory.
+     *
+     * @param mailDirectory The user's mail directory.
+     */
+    public SegmentMessageStore(File mailDirectory) {
+        super(mailDirectory);
+        this.segmentDirectory = new File(mailDirectory, SEGMENT_DIRECTORY_NAME).getAbsoluteFile();
+    }
+
+    /**
+     * Checks if a message was published into the store, even if it was deleted since.
+     */
+    @Override
+    public boolean contains(long id) throws IOException {
+        return mailDirectory.isDirectory() && (getMessageFile(id).exists() || index.contains(id));
+    }
+
+    /**
+     * Publishes a complete message by appending a copy of its content to the current segment. A staging file is
+     * deleted once the message is published.
+     */
+    @Override
+    public File publish(Path content, long id, long size, int headerSize, boolean move) throws IOException {
+        File segment = withSegmentLock(() -> {
+            MailboxIndex.Entry entry;
+            try (FileChannel source = FileChannel.open(content, StandardOpenOption.READ)) {
+                entry = append(source, 0, id, size, headerSize);
+            }
+            index.append(id, size, entry.getSegment(), entry.getOffset(), headerSize);
+            return getSegmentFile(entry.getSegment());
+        });
+        if (move)
+            Files.deleteIfExists(content);
+        return segment;
+    }
+
+    /**
+     * Replaces the content of a message in a segment by appending a new record for it to the current segment and
+     * pointing its index entry to the new record, as records are never rewritten. The damaged record is left as
+     * deleted content, for compaction to remove. Messages stored in their own files are replaced as by
+     * FileMessageStore.
+     */
+    @Override
+    public File repair(MailboxIndex.Entry entry, Path content) throws IOException {
+        if (entry.getSegment() < 0)
+            return super.repair(entry, content);
+        File segment = withSegmentLock(() -> {
+            MailboxIndex.Entry repaired;
+            try (FileChannel source = FileChannel.open(content, StandardOpenOption.READ)) {
+                repaired = append(source, 0, entry.getId(), entry.getSize(), entry.getHeaderSize());
+            }
+            index.relocate(List.of(repaired));
+            return getSegmentFile(repaired.getSegment());
+        });
+        Files.deleteIfExists(content);
+        return segment;
+    }
+
+    @Override
+    public File locate(MailboxIndex.Entry entry) {
+        return entry.getSegment() < 0 ? super.locate(entry) : getSegmentFile(entry.getSegment());
+    }
+
+    /**
+     * Deletes a set of messages by flagging them as expunged in the index. Unlike message files, segments cannot tell
+     * which messages were deleted until they are reclaimed, so an index that cannot be updated is kept as is and the
+     * error is reported.
+     */
+    @Override
+    public void expunge(Set<Long> ids) throws IOException {
+        index.markExpunged(ids);
+    }
+
+    /**
+     * Removes the content of a set of expunged messages: appends a tombstone for each of them to its segment, and
+     * deletes the ones stored in their own files. The affected segments are then compacted in the background if most
+     * of their content was deleted.
+     */
+    @Override
+    public void reclaim(Set<Long> ids) throws IOException {
+        if (ids.isEmpty())
+            return;
+        withSegmentLock(() -> {
+            Set<Long> files = new HashSet<>();
+            Map<Integer, List<Long>> tombstones = new HashMap<>();
+            for (MailboxIndex.Entry entry : index.readUnreclaimed()) {
+                if (!ids.contains(entry.getId()))
+                    continue;
+                if (entry.getSegment() < 0)
+                    files.add(entry.getId());
+                else
+                    tombstones.computeIfAbsent(entry.getSegment(), s -> new ArrayList<>()).add(entry.getId());
+            }
+            for (Map.Entry<Integer, List<Long>> segment : tombstones.entrySet())
+                writeTombstones(segment.getKey(), segment.getValue());
+            deleteFiles(files);
+            index.markReclaimed(ids);
+            return null;
+        });
+        scheduleCompaction();
+    }
+
+    /**
+     * Lists the messages in the message files and in the segments, to rebuild the index. Segments are read in order,
+     * stopping at the first incomplete record of each segment; a tombstone removes the message it refers to, and a
+     * message found more than once (e.g., after a repair or an interrupted compaction) is listed once, at its last
+     * location.
+     */
+    @Override
+    protected List<MailboxIndex.Entry> scan(boolean created) {
+        Map<Long, MailboxIndex.Entry> entries = new LinkedHashMap<>();
+        for (MailboxIndex.Entry entry : super.scan(created))
+            entries.put(entry.getId(), entry);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        for (int number : listSegments()) {
+            try (FileChannel segment = FileChannel.open(getSegmentFile(number).toPath(), StandardOpenOption.READ)) {
+                long size = segment.size();
+                long position = 0;
+                while (size - position >= RECORD_HEADER_SIZE) {
+                    header.clear();
+                    while (header.hasRemaining() && segment.read(header, position + header.position()) > 0) {
+                        // keep reading until the header is complete
+                    }
+                    header.flip();
+                    if (header.remaining() < RECORD_HEADER_SIZE || header.getInt() != RECORD_MAGIC)
+                        break;
+                    int type = header.getInt();
+                    long id = header.getLong();
+                    long length = header.getLong();
+                    if (length < 0 || length > size - position - RECORD_HEADER_SIZE)
+                        break;
+                    if (type == TYPE_MESSAGE)
+                        entries.put(id, new MailboxIndex.Entry(id, length, number, position + RECORD_HEADER_SIZE,
+                                -1));
+                    else if (type == TYPE_TOMBSTONE)
+                        entries.remove(id);
+                    position += RECORD_HEADER_SIZE + length;
+                }
+            } catch (IOException e) {
+                // Skip a segment that cannot be read, as the index cannot be rebuilt otherwise
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Appends a message record to the current segment, starting a new segment if the current one is full. Must be
+     * called while holding the segment lock.
+     *
+     * @param source     Channel with the message content.
+     * @param position   Position of the content in the source.
+     * @param id         The message id.
+     * @param size       The size of the message, in bytes.
+     * @param headerSize The size of the message's headers, or -1 if unknown.
+     * @return An entry with the location of the message.
+     */
+    private MailboxIndex.Entry append(FileChannel source, long position, long id, long size, int headerSize)
+            throws IOException {
+        List<Integer> segments = listSegments();
+        int number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        if (getSegmentFile(number).length() >= SEGMENT_SIZE)
+            number = segments.isEmpty() ? 0 : number + 1;
+        try (FileChannel segment = FileChannel.open(getSegmentFile(number).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            long start = segment.size();
+            try {
+                writeRecord(segment, start, source, position, id, size);
+            } catch (IOException | RuntimeException e) {
+                segment.truncate(start); // leave no partial record behind
+                throw e;
+            }
+            return new MailboxIndex.Entry(id, size, number, start + RECORD_HEADER_SIZE, headerSize);
+        }
+    }
+
+    /**
+     * Writes a message record at a position of a segment: the header, followed by the content copied from a channel.
+     *
+     * @param segment  Channel of the segment.
+     * @param start    Position of the record in the segment.
+     * @param source   Channel with the message content.
+     * @param position Position of the content in the source.
+     * @param id       The message id.
+     * @param size     The size of the message, in bytes.
+     */
+    private static void writeRecord(FileChannel segment, long start, FileChannel source, long position, long id,
+            long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC).putInt(TYPE_MESSAGE).putLong(id).putLong(size).flip();
+        while (header.hasRemaining())
+            segment.write(header, start + header.position());
+        long copied = 0;
+        while (copied < size) {
+            long transferred = source.transferTo(position + copied, size - copied,
+                    segment.position(start + RECORD_HEADER_SIZE + copied));
+            if (transferred <= 0)
+                throw new IOException("Message content is shorter than expected.");
+            copied += transferred;
+        }
+    }
+
+    /**
+     * Appends tombstone records for a set of messages to their segment. Must be called while holding the segment lock.
+     */
+    private void writeTombstones(int number, List<Long> ids) throws IOException {
+        File file = getSegmentFile(number);
+        if (!file.exists())
+            return;
+        ByteBuffer records = ByteBuffer.allocate(ids.size() * RECORD_HEADER_SIZE);
+        for (long id : ids)
+            records.putInt(RECORD_MAGIC).putInt(TYPE_TOMBSTONE).putLong(id).putLong(0);
+        records.flip();
+        try (FileChannel segment = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            while (records.hasRemaining())
+                segment.write(records);
+        }
+    }
+
+    /**
+     * Schedules the compaction of the mailbox's segments in the background, unless it is already scheduled.
+     */
+    private void scheduleCompaction() {
+        if (!compactionsScheduled.add(segmentDirectory))
+            return;
+        compactor.execute(() -> {
+            compactionsScheduled.remove(segmentDirectory);
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                Log.error("Error compacting the segments in {}", segmentDirectory, e);
+            }
+        });
+    }
+
+    /**
+     * Compacts every segment where deleted messages take more than half of the space: the remaining messages are
+     * copied to new segments, the index is updated with their new locations, and the old segments are deleted.
+     * <p>
+     * The segment lock is only held to choose the segments and to swap the copies in, so deliveries and deletions go
+     * on while the messages are copied. If a copied message is deleted or moved meanwhile, the copies are discarded,
+     * and the segments are compacted again after the next deletion.
+     *
+     * @throws IOException If there is an error compacting the segments.
+     */
+    void compact() throws IOException {
+        Compaction compaction = withSegmentLock(this::planCompaction);
+        if (compaction == null)
+            return;
+        try {
+            copyMessages(compaction);
+        } catch (IOException | RuntimeException e) {
+            deleteCopies(compaction);
+            throw e;
+        }
+        withSegmentLock(() -> {
+            swapSegments(compaction);
+            return null;
+        });
+    }
+
+    /**
+     * Chooses the segments to compact and where their remaining messages are copied, and reserves the segments for the
+     * copies. A new current segment is started after them, so nothing is appended to the compacted segments or to the
+     * copies until the compaction is done. Must be called while holding the segment lock.
+     *
+     * @return The planned compaction, or null if no segment needs to be compacted.
+     */
+    private Compaction planCompaction() throws IOException {
+        Map<Integer, List<MailboxIndex.Entry>> live = new HashMap<>();
+        for (MailboxIndex.Entry entry : index.read()) {
+            if (entry.getSegment() >= 0)
+                live.computeIfAbsent(entry.getSegment(), s -> new ArrayList<>()).add(entry);
+        }
+        List<Integer> segments = listSegments();
+        if (segments.isEmpty())
+            return null;
+        int last = segments.get(segments.size() - 1);
+        // The current segment is reused for the copies if nothing was appended to it yet
+        Compaction compaction = new Compaction(getSegmentFile(last).length() == 0 ? last : last + 1);
+        int target = compaction.firstCopy - 1;
+        long position = 0;
+        for (int number : segments) {
+            File file = getSegmentFile(number);
+            List<MailboxIndex.Entry> entries = live.getOrDefault(number, List.of());
+            long liveSize = 0;
+            for (MailboxIndex.Entry entry : entries)
+                liveSize += RECORD_HEADER_SIZE + entry.getSize();
+            if (liveSize * 2 >= file.length())
+                continue;
+            compaction.sources.add(number);
+            for (MailboxIndex.Entry entry : entries) {
+                if (target < compaction.firstCopy || position >= SEGMENT_SIZE) {
+                    target++;
+                    position = 0;
+                }
+                compaction.originals.add(entry);
+                compaction.copies.add(new MailboxIndex.Entry(entry.getId(), entry.getSize(), target,
+                        position + RECORD_HEADER_SIZE, entry.getHeaderSize()));
+                position += RECORD_HEADER_SIZE + entry.getSize();
+            }
+        }
+        if (compaction.sources.isEmpty())
+            return null;
+        compaction.lastCopy = target;
+        for (int number = compaction.firstCopy; number <= target + 1; number++)
+            Files.newByteChannel(getSegmentFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                    .close();
+        return compaction;
+    }
+
+    /**
+     * Copies the remaining messages of the compacted segments to the segments reserved for them. Runs without the
+     * segment lock, as nothing else writes to the reserved segments.
+     */
+    private void copyMessages(Compaction compaction) throws IOException {
+        FileChannel source = null;
+        FileChannel target = null;
+        try {
+            for (int i = 0; i < compaction.copies.size(); i++) {
+                MailboxIndex.Entry original = compaction.originals.get(i);
+                MailboxIndex.Entry copy = compaction.copies.get(i);
+                if (i == 0 || original.getSegment() != compaction.originals.get(i - 1).getSegment()) {
+                    if (source != null)
+                        source.close();
+                    source = FileChannel.open(getSegmentFile(original.getSegment()).toPath(),
+                            StandardOpenOption.READ);
+                }
+                if (i == 0 || copy.getSegment() != compaction.copies.get(i - 1).getSegment()) {
+                    if (target != null)
+                        target.close();
+                    target = FileChannel.open(getSegmentFile(copy.getSegment()).toPath(), StandardOpenOption.WRITE);
+                }
+                writeRecord(target, copy.getOffset() - RECORD_HEADER_SIZE, source, original.getOffset(),
+                        copy.getId(), copy.getSize());
+            }
+        } finally {
+            if (source != null)
+                source.close();
+            if (target != null)
+                target.close();
+        }
+    }
+
+    /**
+     * Points the index to the copies and deletes the compacted segments, unless one of their messages was deleted or
+     * moved since the compaction was planned, in which case the copies are deleted instead. Must be called while
+     * holding the segment lock.
+     */
+    private void swapSegments(Compaction compaction) throws IOException {
+        Map<Long, MailboxIndex.Entry> current = new HashMap<>();
+        for (MailboxIndex.Entry entry : index.read()) {
+            if (compaction.sources.contains(entry.getSegment()))
+                current.put(entry.getId(), entry);
+        }
+        boolean unchanged = current.size() == compaction.originals.size();
+        for (MailboxIndex.Entry original : compaction.originals) {
+            MailboxIndex.Entry entry = current.get(original.getId());
+            unchanged &= entry != null && entry.getSegment() == original.getSegment() &&
+                    entry.getOffset() == original.getOffset();
+        }
+        if (!unchanged) {
+            Log.debug("Discarding the compaction of the segments in {}, as they changed meanwhile", segmentDirectory);
+            deleteCopies(compaction);
+            return;
+        }
+        index.relocate(compaction.copies);
+        for (int number : compaction.sources) {
+            File file = getSegmentFile(number);
+            MessageContentCache.getInstance().invalidate(file);
+            Files.delete(file.toPath());
+        }
+    }
+
+    /**
+     * Deletes the segments reserved for the copies of a compaction that did not complete.
+     */
+    private void deleteCopies(Compaction compaction) throws IOException {
+        for (int number = compaction.firstCopy; number <= compaction.lastCopy; number++)
+            Files.deleteIfExists(getSegmentFile(number).toPath());
+    }
+
+    /**
+     * Returns the numbers of the existing segments, in ascending order.
+     */
+    private List<Integer> listSegments() {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = segmentDirectory.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment, ignore it
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    /**
+     * Returns the file of a segment.
+     *
+     * @param number The segment number.
+     * @return A File object for the segment.
+     */
+    public File getSegmentFile(int number) {
+        return new File(segmentDirectory, number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Runs an operation while holding both an in-process lock and a file lock on the mailbox's segments, as file locks
+     * only exclude other processes. Appends, deletions and compactions of the same mailbox never overlap.
+     */
+    private <T> T withSegmentLock(SegmentOperation<T> operation) throws IOException {
+        ReentrantLock processLock = processLocks.computeIfAbsent(segmentDirectory, f -> new ReentrantLock());
+        processLock.lock();
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            segmentDirectory.mkdirs();
+            try (FileChannel channel = FileChannel.open(new File(segmentDirectory, LOCK_FILE_NAME).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    return operation.apply();
+                } finally {
+                    lock.release();
+                }
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    private interface SegmentOperation<T> {
+        T apply() throws IOException;
+    }
+
+    /**
+     * A planned compaction: the segments to compact, their remaining messages, and where each of them is copied.
+     */
+    private static class Compaction {
+
+        final List<Integer> sources = new ArrayList<>();
+        final List<MailboxIndex.Entry> originals = new ArrayList<>();
+        final List<MailboxIndex.Entry> copies = new ArrayList<>();
+        final int firstCopy;
+        int lastCopy;
+
+        Compaction(int firstCopy) {
+            this.firstCopy = firstCopy;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package mailserver.mailbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory of user accounts, loaded from the users database (one "username credential" entry per line, where the
+ * credential is either the password or a hash created with Credentials). Shared by the mailboxes and by the SMTP and
+ * POP3 servers, so user lookups never read the file.
+ * <p>
+ * The accounts are kept in an immutable map that is replaced as a whole whenever the file changes, so lookups are
+ * lock-free and always see a consistent set of accounts. A background thread checks the file's modification time and
+ * size periodically (every <code>mailserver.userReloadInterval</code> milliseconds, two seconds by default) and
+ * reloads it when either changes, so accounts can be added or removed without restarting the servers.
+ */
+public class UserDirectory {
+
+    public static final long RELOAD_INTERVAL = Long.getLong("mailserver.userReloadInterval", 2000);
+
+    private static final UserDirectory instance = new UserDirectory(new File(Mailbox.USER_FILE_NAME));
+
+    private final File userFile;
+    private volatile Map<String, Account> accounts = Collections.emptyMap();
+    private long loadedModified = -1;
+    private long loadedLength = -1;
+
+    /**
+     * Creates a directory for a users database and loads it.
+     *
+     * @param userFile The users database file.
+     */
+    private UserDirectory(File userFile) {
+        this.userFile = userFile;
+        reloadIfChanged();
+        if (RELOAD_INTERVAL > 0) {
+            ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "user-directory-reloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(this::reloadIfChanged, RELOAD_INTERVAL, RELOAD_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the directory shared by the whole process.
+     *
+     * @return The user directory for the users database.
+     */
+    public static UserDirectory getInstance() {
+        return instance;
+    }
+
+    /**
+     * Finds the account for a user's address. Addresses are compared ignoring case.
+     *
+     * @param user The user's address, including domain name.
+     * @return The user's account, or null if the user is not in the database.
+     */
+    public Account lookup(String user) {
+        if (user == null)
+            return null;
+        return accounts.get(user.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks if a specified user address is a valid user, according to the user database.
+     *
+     * @param user The user's address, including domain name.
+     * @return true if the user is in the database, and false otherwise.
+     */
+    public boolean isValidUser(String user) {
+        return lookup(user) != null;
+    }
+
+    /**
+     * Reloads the users database if its modification time or size changed since it was last loaded. If the file
+     * cannot be read, the accounts loaded before are kept; if the file does not exist, there are no users.
+     */
+    private synchronized void reloadIfChanged() {
+        long modified = userFile.lastModified();
+        long length = userFile.length();
+        if (modified == loadedModified && length == loadedLength)
+            return;
+        Map<String, Account> loaded = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(userFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] split = line.split(" ", 2);
+                if (split.length == 2)
+                    loaded.put(split[0].toLowerCase(Locale.ROOT), new Account(split[0], split[1]));
+            }
+        } catch (IOException e) {
+            if (userFile.exists())
+                return; // keep the previous accounts, and try again on the next check
+        }
+        accounts = Collections.unmodifiableMap(loaded);
+        loadedModified = modified;
+        loadedLength = length;
+    }
+
+    /**
+     * An individual user account.
+     */
+    public static class Account {
+
+        private final String name;
+        private final String credential;
+
+        Account(String name, String credential) {
+            this.name = name;
+            this.credential = credential;
+        }
+
+        /**
+         * Returns the user's address as written in the users database, which also names the user's mail directory.
+         *
+         * @return The user's address, including domain name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Checks a password against the account's credential, which may be a plain-text password or a hash (see
+         * Credentials). Recent successful checks of hashed credentials are answered from the shared CredentialCache.
+         *
+         * @param password The password, unencrypted.
+         * @return true if the password is correct, and false otherwise.
+         */
+        public boolean checkPassword(String password) {
+            return password != null && CredentialCache.getInstance().verify(name, credential, password);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package mailserver.mailbox;
+
+/**
+ * Encodes message content into the format messages are stored in, which is the format of a message sent in the
+ * response of the POP3 RETR and TOP commands: CRLF line endings, and an additional "." at the start of every line that
+ * starts with ".". A stored message is then sent as is, without looking at its lines (see MyPOPServer).
+ * <p>
+ * The encoder only tells which character to insert before each character of the content, so it serves byte and
+ * character writers alike. The content may be split at any point between calls, as the encoder keeps track of the
+ * current line.
+ */
+final class WireFormatEncoder {
+
+    private final boolean lineEndings;
+    private boolean lineStart = true;
+    private boolean afterCR = false;
+
+    /**
+     * Creates an encoder for a new message.
+     *
+     * @param lineEndings true to turn bare LF line endings into CRLF, or false to keep the line endings as they are
+     *                    (e.g., for binary content, where a LF byte is not a line ending); lines are dot-stuffed
+     *                    either way.
+     */
+    WireFormatEncoder(boolean lineEndings) {
+        this.lineEndings = lineEndings;
+    }
+
+    /**
+     * Returns the character to insert before the next character of the content, if any.
+     *
+     * @param c The next character (or byte) of the content.
+     * @return '.' before a "." that starts a line, '\r' before a bare LF, or -1 if nothing is inserted.
+     */
+    int escape(int c) {
+        int insert = -1;
+        if (lineStart && c == '.')
+            insert = '.';
+        else if (c == '\n' && !afterCR && lineEndings)
+            insert = '\r';
+        lineStart = c == '\n';
+        afterCR = c == '\r';
+        return insert;
+    }
+}
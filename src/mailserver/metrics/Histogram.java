@@ -0,0 +1,170 @@
+package mailserver.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of values (e.g., latencies) counted in fixed buckets, which any number of threads may record into
+ * at the same time. Each bucket is a <code>LongAdder</code>, so concurrent sessions do not contend on a shared counter,
+ * and recording a value only looks up its bucket and adds to it: it never locks or allocates.
+ * <p>
+ * Values are recorded in a base unit (e.g., nanoseconds) and reported in a larger unit (e.g., seconds), obtained by
+ * dividing by the number of base units per reported unit. Percentiles are approximate: they are reported as the upper
+ * bound of the bucket that holds them, but never more than the largest value recorded.
+ */
+public class Histogram implements HistogramMBean {
+
+    /**
+     * Bucket bounds for latencies in nanoseconds, from 10 microseconds to 10 seconds.
+     */
+    public static final long[] LATENCY_BOUNDS = {
+            10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 25_000_000, 50_000_000,
+            100_000_000, 250_000_000, 500_000_000, 1_000_000_000, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L};
+
+    /**
+     * Bucket bounds for small counts, e.g. the number of recipients of a message.
+     */
+    public static final long[] COUNT_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    /**
+     * Unit that reports latencies recorded in nanoseconds as seconds.
+     */
+    public static final double SECONDS = 1e9;
+
+    private final long[] bounds;
+    private final double unit;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param bounds The inclusive upper bounds of the buckets, in increasing order and in the base unit. Values above
+     *               the last bound are counted in an additional bucket.
+     * @param unit   The number of base units in the reported unit, e.g. <code>SECONDS</code>, or 1 to report values
+     *               as recorded.
+     */
+    public Histogram(long[] bounds, double unit) {
+        this.bounds = bounds.clone();
+        this.unit = unit;
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value The value, in the base unit. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket])
+            bucket++;
+        buckets[bucket].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records the time elapsed since an operation started.
+     *
+     * @param startNanos The time when the operation started, as given by <code>System.nanoTime()</code>.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the current count of every bucket. As values may be recorded while the counts are read, the total is
+     * only consistent with the sum to within the values recorded meanwhile.
+     *
+     * @return The bucket counts, the last of which counts the values above the last bound.
+     */
+    long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+
+    long[] getBounds() {
+        return bounds;
+    }
+
+    double getUnit() {
+        return unit;
+    }
+
+    /**
+     * Returns the sum of the recorded values, in the reported unit.
+     *
+     * @return The sum of the values.
+     */
+    public double getSum() {
+        return sum.sum() / unit;
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets)
+            count += bucket.sum();
+        return count;
+    }
+
+    @Override
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : getSum() / count;
+    }
+
+    @Override
+    public double getMax() {
+        return max.get() / unit;
+    }
+
+    @Override
+    public double get50thPercentile() {
+        return getValueAtPercentile(50);
+    }
+
+    @Override
+    public double get99thPercentile() {
+        return getValueAtPercentile(99);
+    }
+
+    @Override
+    public double get999thPercentile() {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * Returns the approximate value at a percentile of the recorded values.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the bucket holding the percentile, but no more than the largest value recorded, in
+     * the reported unit, or 0 if no value was recorded.
+     */
+    public double getValueAtPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long largest = max.get();
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(bounds[i], largest) / unit;
+        }
+        return largest / unit;
+    }
+}
@@ -0,0 +1,20 @@
+package mailserver.metrics;
+
+/**
+ * Management interface of a histogram, as shown by JMX clients. Values are in the histogram's reported unit (e.g.,
+ * seconds for latencies).
+ */
+public interface HistogramMBean {
+
+    long getCount();
+
+    double getMean();
+
+    double getMax();
+
+    double get50thPercentile();
+
+    double get99thPercentile();
+
+    double get999thPercentile();
+}
@@ -0,0 +1,246 @@
+package mailserver.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import mailserver.log.Log;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide registry of the server's metrics. Every metric is registered once, when the component that records it
+ * is loaded, and recorded into without going through the registry; the registry only reads the metrics when they are
+ * exported, so it is not involved in the cost of recording them.
+ * <p>
+ * Histograms and protocol counters are registered as MBeans in the platform MBean server, under the
+ * <code>mailserver</code> domain, so they can be watched with any JMX client (e.g., JConsole). All the metrics can
+ * also be scraped as plain text, in the Prometheus exposition format, from <code>/metrics</code> on the HTTP port set
+ * with <code>mailserver.metricsPort</code>; the endpoint is disabled by default. The SMTP and POP3 servers run in
+ * separate processes, so each needs its own port.
+ */
+public class Metrics {
+
+    /**
+     * System property with the port of the HTTP endpoint that serves the metrics as text. Zero (the default) disables
+     * the endpoint.
+     */
+    public static final String PORT_PROPERTY = "mailserver.metricsPort";
+
+    private static final Metrics instance = new Metrics();
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the registry shared by the whole process.
+     *
+     * @return The metrics registry.
+     */
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates and registers the metrics of a protocol server: session and byte counters, and a latency histogram for
+     * each command, plus one for the requests with an unknown command.
+     *
+     * @param protocol The protocol name, e.g. "smtp".
+     * @param commands The names of the commands, in upper case. The most frequent commands should come first, as they
+     *                 are looked up in order.
+     * @return The protocol's metrics.
+     */
+    public ProtocolMetrics protocol(String protocol, String... commands) {
+        Histogram[] histograms = new Histogram[commands.length];
+        for (int i = 0; i < commands.length; i++)
+            histograms[i] = commandHistogram(protocol, commands[i]);
+        Histogram other = commandHistogram(protocol, ProtocolMetrics.OTHER);
+        ProtocolMetrics metrics = new ProtocolMetrics(protocol, commands.clone(), histograms, other);
+        String labels = "protocol=\"" + protocol + "\"";
+        gauge("mailserver_active_sessions", "Sessions currently open.", labels, metrics::getActiveSessions);
+        counter("mailserver_sessions_total", "Sessions started.", labels, metrics::getSessions);
+        counter("mailserver_received_bytes_total", "Bytes received from clients.", labels, metrics::getBytesIn);
+        counter("mailserver_sent_bytes_total", "Bytes sent to clients.", labels, metrics::getBytesOut);
+        registerMBean("mailserver:type=Protocol,name=" + protocol, metrics);
+        return metrics;
+    }
+
+    private Histogram commandHistogram(String protocol, String command) {
+        return histogram("mailserver_command_duration_seconds",
+                "Time to process a request, from receiving it to queueing its response.",
+                "protocol=\"" + protocol + "\",command=\"" + command + "\"",
+                Histogram.LATENCY_BOUNDS, Histogram.SECONDS,
+                "mailserver:type=Command,protocol=" + protocol + ",name=" + command);
+    }
+
+    /**
+     * Creates and registers a histogram.
+     *
+     * @param name       The metric name.
+     * @param help       A description of the metric.
+     * @param labels     The labels that tell this histogram apart from the others with the same name, as
+     *                   <code>name="value"</code> pairs separated by commas, or an empty string.
+     * @param bounds     The bucket bounds, in the base unit.
+     * @param unit       The number of base units in the reported unit.
+     * @param objectName The JMX object name of the histogram, or null if it should not be registered as an MBean.
+     * @return The histogram.
+     */
+    public Histogram histogram(String name, String help, String labels, long[] bounds, double unit,
+                               String objectName) {
+        Histogram histogram = new Histogram(bounds, unit);
+        add(name, "histogram", help, labels, histogram);
+        if (objectName != null)
+            registerMBean(objectName, histogram);
+        return histogram;
+    }
+
+    /**
+     * Registers a counter, a value that only increases, read from its owner when the metrics are exported.
+     *
+     * @param name   The metric name, which should end in <code>_total</code>.
+     * @param help   A description of the metric.
+     * @param labels The labels that tell this counter apart from the others with the same name, or an empty string.
+     * @param value  Reads the counter's current value.
+     */
+    public void counter(String name, String help, String labels, DoubleSupplier value) {
+        add(name, "counter", help, labels, value);
+    }
+
+    /**
+     * Registers a gauge, a value that goes up and down, read from its owner when the metrics are exported.
+     *
+     * @param name   The metric name.
+     * @param help   A description of the metric.
+     * @param labels The labels that tell this gauge apart from the others with the same name, or an empty string.
+     * @param value  Reads the gauge's current value.
+     */
+    public void gauge(String name, String help, String labels, DoubleSupplier value) {
+        add(name, "gauge", help, labels, value);
+    }
+
+    private synchronized void add(String name, String type, String help, String labels, Object metric) {
+        families.computeIfAbsent(name, key -> new Family(type, help)).series.add(new Series(labels, metric));
+    }
+
+    private static void registerMBean(String objectName, Object mbean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(objectName));
+        } catch (JMException e) {
+            Log.error("Error registering the MBean {}", objectName, e);
+        }
+    }
+
+    /**
+     * Returns the current value of every metric, in the Prometheus text exposition format.
+     *
+     * @return The metrics as text.
+     */
+    public synchronized String toText() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Series series : family.series) {
+                if (series.metric instanceof Histogram histogram)
+                    writeHistogram(out, name, series.labels, histogram);
+                else
+                    writeSample(out, name, series.labels, ((DoubleSupplier) series.metric).getAsDouble());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long[] bounds = histogram.getBounds();
+        long[] counts = histogram.getBucketCounts();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            String bound = i < bounds.length ? format(bounds[i] / histogram.getUnit()) : "+Inf";
+            writeSample(out, name + "_bucket", prefix + "le=\"" + bound + "\"", total);
+        }
+        writeSample(out, name + "_sum", labels, histogram.getSum());
+        writeSample(out, name + "_count", labels, total);
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty())
+            out.append('{').append(labels).append('}');
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    /**
+     * Starts the HTTP endpoint that serves the metrics as text, if a port is set with
+     * <code>mailserver.metricsPort</code>. The endpoint runs on its own thread, which is not involved in serving mail
+     * clients.
+     *
+     * @throws IOException If the endpoint cannot listen on the port.
+     */
+    public void serve() throws IOException {
+        int port = Integer.getInteger(PORT_PROPERTY, 0);
+        if (port <= 0)
+            return;
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        Log.info("Serving metrics on port {}...", server.getAddress().getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    /**
+     * The metrics that share a name, told apart by their labels.
+     */
+    private static class Family {
+
+        final String type;
+        final String help;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    /**
+     * A metric with its labels: a histogram, or a supplier of the value of a counter or gauge.
+     */
+    private static class Series {
+
+        final String labels;
+        final Object metric;
+
+        Series(String labels, Object metric) {
+            this.labels = labels;
+            this.metric = metric;
+        }
+    }
+}
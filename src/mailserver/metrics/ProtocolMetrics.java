@@ -0,0 +1,111 @@
+package mailserver.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The measurements of every session of a protocol server: the number of sessions, the bytes received and sent, and a
+ * latency histogram for each command. The commands are known in advance, so looking up a request's histogram only
+ * compares its first word with each name, without decoding or allocating anything; requests for any other command
+ * are counted as OTHER.
+ * <p>
+ * Instances are created with <code>Metrics.protocol()</code>, which registers them for JMX and the metrics endpoint.
+ */
+public class ProtocolMetrics implements ProtocolMetricsMBean {
+
+    /**
+     * Name under which requests for unknown commands are counted.
+     */
+    public static final String OTHER = "OTHER";
+
+    private final String protocol;
+    private final String[] names;
+    private final Histogram[] commands;
+    private final Histogram other;
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    ProtocolMetrics(String protocol, String[] names, Histogram[] commands, Histogram other) {
+        this.protocol = protocol;
+        this.names = names;
+        this.commands = commands;
+        this.other = other;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Returns the latency histogram of the command of a request line.
+     *
+     * @param line The request line; its first word (up to the first space) is the command, in any case.
+     * @return The command's histogram, or the OTHER histogram if the command is not known.
+     */
+    public Histogram command(String line) {
+        int end = line.indexOf(' ');
+        if (end < 0)
+            end = line.length();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length() == end && line.regionMatches(true, 0, names[i], 0, end))
+                return commands[i];
+        }
+        return other;
+    }
+
+    /**
+     * Called when a session starts.
+     */
+    public void sessionOpened() {
+        sessions.increment();
+        activeSessions.increment();
+    }
+
+    /**
+     * Called when a session that was started is closed.
+     */
+    public void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    /**
+     * Counts bytes received from a client.
+     *
+     * @param bytes The number of bytes read, which may be negative at the end of the input (and is then ignored).
+     */
+    public void read(long bytes) {
+        if (bytes > 0)
+            bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts bytes sent to a client.
+     *
+     * @param bytes The number of bytes written.
+     */
+    public void written(long bytes) {
+        if (bytes > 0)
+            bytesOut.add(bytes);
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getSessions() {
+        return sessions.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+}
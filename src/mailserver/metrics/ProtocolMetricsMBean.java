@@ -0,0 +1,15 @@
+package mailserver.metrics;
+
+/**
+ * Management interface of the session counters of a protocol server, as shown by JMX clients.
+ */
+public interface ProtocolMetricsMBean {
+
+    long getActiveSessions();
+
+    long getSessions();
+
+    long getBytesIn();
+
+    long getBytesOut();
+}
@@ -3,281 +3,408 @@ package mailserver.net;
 import mailserver.mailbox.MailMessage;
 import mailserver.mailbox.Mailbox;
 import mailserver.mailbox.Mailbox.MailboxNotAuthenticatedException;
+import mailserver.mailbox.MaildropLocks;
+import mailserver.mailbox.MessageHeaders;
+import mailserver.mailbox.ReclamationWorker;
+import mailserver.metrics.Metrics;
+import mailserver.metrics.ProtocolMetrics;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
-public class MyPOPServer extends Thread {
+public class MyPOPServer extends Session {
+
+    private static final String[] CAPABILITIES = {"USER", "PIPELINING", "RESP-CODES", "TOP", "UIDL"};
+    private static final int MAX_LINE_LENGTH = 512;
+    private static final String UIDL_UNAVAILABLE = "-ERR unique ids are not available, try again later\n";
+    private static final ProtocolMetrics METRICS = Metrics.getInstance().protocol("pop3",
+            "RETR", "DELE", "TOP", "LIST", "UIDL", "STAT", "USER", "PASS", "QUIT", "NOOP", "RSET", "CAPA");
 
-    private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
     private String user;
     private boolean authorizationState;
     private boolean transactionState;
     private Mailbox mailbox;
+    private MaildropLocks.Lock maildropLock;
 
     // TODO Additional properties, if needed
 
     /**
      * Initializes an object responsible for a connection to an individual client.
      *
-     * @param socket The socket associated to the accepted connection.
+     * @param channel The socket channel associated to the accepted connection.
      * @throws IOException If there is an error attempting to retrieve the socket's information.
      */
-    public MyPOPServer(Socket socket) throws IOException {
-        this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+    public MyPOPServer(SocketChannel channel) throws IOException {
+        super(channel, METRICS);
     }
 
     /**
-     * Handles the communication with an individual client. Must send the initial welcome message, and then repeatedly
-     * read requests, process the individual operation, and return a response, according to the POP3 protocol. Empty
-     * request lines should be ignored. Only returns if the connection is terminated or if the QUIT command is issued.
-     * Must close the socket connection before returning.
+     * Sends the initial welcome message and enters the authorization state.
      */
     @Override
-    public void run() {
-        try (this.socket) {
-        	
-        	socketOut.write("+OK POP3 server ready\n");
-        	socketOut.flush();
-        	
-        	authorizationState = true;
-        	transactionState = false;
-
-        	while(socket.isConnected()) {
-        		
-        		String[] request = socketIn.readLine().split(" ");
-        		
-        		if(request[0].toUpperCase().equals("QUIT")) { //handle QUIT
-					
-        			if(mailbox != null) {
-						mailbox.deleteMessagesTaggedForDeletion();
-					}
-					
-        			socketOut.write("+OK POP3 server signing off\n");
-                	socketOut.flush();
-                	socket.close();
-                	return;
-        		}
-        		
-        		if(request[0].toUpperCase().equals("NOOP")) { //handle NOOP
-        			socketOut.write("+OK hello\n");
-                	socketOut.flush();
-        		}
-        		
-        		if(request[0].toUpperCase().equals("USER")) { //handle USER
-        			if(!authorizationState) {
-    					socketOut.write("-ERR already logged in\n");
-    					socketOut.flush();				
-        			}else {
-	        			if(request.length != 2 || !verifyUsername(request[1])){
-	            			socketOut.write("-ERR " + user + " is not a valid mailbox\n");
-	                    	socketOut.flush();
-	        			}else {
-	        				user = request[1];
-	            			socketOut.write("+OK " + user + " is a valid mailbox\n");
-	                    	socketOut.flush();
-	        			}
-        			}
-        		}
-
-        		if(request[0].toUpperCase().equals("PASS")) { //handle PASS
-        			if(!authorizationState) {
-    					socketOut.write("-ERR already logged in\n");
-    					socketOut.flush();
-        			}else {
-        				if(request.length != 2){
-                			socketOut.write("-ERR PASS must have a single argument\n");
-                        	socketOut.flush();
-        				}else if(user != null){
-            				try {
-            					mailbox = new Mailbox(user);
-            					mailbox.loadMessages(request[1]);
-            					transactionState = true;
-                    			authorizationState = false;
-            					socketOut.write("+OK " + user + " has " + mailbox.size(false) + " messages\n");
-            					socketOut.flush();				
-            				}catch(MailboxNotAuthenticatedException e) {
-            					socketOut.write("-ERR invalid password\n");
-            					socketOut.flush();
-            				}
-        				}
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("STAT")) { //handle STAT
-        			if(!transactionState) {
-    					socketOut.write("-ERR please log in\n");
-    					socketOut.flush();				
-        			}else {
-    					socketOut.write("+OK " + mailbox.size(false) + " " + mailbox.getTotalUndeletedFileSize(false) + "\n");
-    					socketOut.flush();				
-        			}	
-        		}
-        		
-        		if(request[0].toUpperCase().equals("LIST")) { //handle LIST
-        			if(!transactionState) {
-    					socketOut.write("-ERR please log in\n");
-    					socketOut.flush();				
-        			}else {
-        				if(request.length == 1){ //no argument LIST
-        					socketOut.write("+OK " + mailbox.size(false) + " messages " + "(" + mailbox.getTotalUndeletedFileSize(false) + " bytes)\n");
-        					for(int i = 1; i <= mailbox.size(true); i++) {
-        						if(!mailbox.getMailMessage(i).isDeleted()) {
-        							socketOut.write(i + " " + mailbox.getMailMessage(i).getFileSize() + "\n");
-        						}
-        					}
-        					socketOut.write(".\n");
-        					socketOut.flush();
-	        			}else if(request.length == 2) { //argument LIST
-	        				try{
-	        					if(mailbox.getMailMessage(Integer.parseInt(request[1])).isDeleted()){
-	    	    					socketOut.write("-ERR message was deleted\n");
-	    	    					socketOut.flush();		
-	        					}else {
-	        						socketOut.write("+OK " + request[1] + " " + mailbox.getMailMessage(Integer.parseInt(request[1])).getFileSize() + "\n");
-	        						socketOut.flush();
-	        					}
-	        				}catch(IndexOutOfBoundsException e) {
-        						socketOut.write("-ERR index is out of bounds\n");
-        						socketOut.flush();
-	        				}
-	        			}
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("DELE")) { //handle DELE
-        			if(!transactionState) {
-    					socketOut.write("-ERR please log in\n");
-    					socketOut.flush();				
-        			}else {
-	        			if(request.length != 2){
-	    					socketOut.write("-ERR please input file number\n");
-	    					socketOut.flush();
-	        			}else {
-	        				try {
-	        					MailMessage message = mailbox.getMailMessage(Integer.parseInt(request[1]));
-	        					message.tagForDeletion();
-	        					socketOut.write("+OK message deleted\n");
-	        					socketOut.flush();
-	        				}catch(IndexOutOfBoundsException e) {
-	        					socketOut.write("-ERR index is out of bounds\n");
-	        					socketOut.flush();	
-	        				}
-	        			}
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("RSET")) { //handle RSET
-        			if(!transactionState) {
-    					socketOut.write("-ERR please log in\n");
-    					socketOut.flush();				
-        			}else {
-        				for(int i = 1; i <= mailbox.size(true); i++) {
-        					MailMessage message = mailbox.getMailMessage(i);
-        					if(message.isDeleted()) {
-        						message.undelete();
-        					}
-        				}
-    					socketOut.write("+OK mailbox has " + mailbox.size(false) + " messages " + "(" + mailbox.size(false) + " bytes)\n");
-    					socketOut.flush();
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("RETR")) { //handle RSET
-        			if(!transactionState) {
-    					socketOut.write("-ERR please log in\n");
-    					socketOut.flush();				
-        			}else {
-        				try {
-		        			if(mailbox.getMailMessage(Integer.parseInt(request[1])).isDeleted()){
-		    					socketOut.write("-ERR message was deleted\n");
-		    					socketOut.flush();		
-		        			}else {
-		    	    				socketOut.write("+OK " + mailbox.getMailMessage(Integer.parseInt(request[1])).getFileSize() + " bytes\n");
-		    	    				socketOut.flush();
-		    	    				
-		    	    				BufferedReader reader = new BufferedReader(new FileReader(mailbox.getMailMessage(Integer.parseInt(request[1])).getFile()));
-		        					String line = reader.readLine();
-		    	    				while(line != null) {
-		    	    					System.out.println(line + "\n");
-		    	    					socketOut.write(line + "\n");
-		    	    					line = reader.readLine();
-		        					}
-	    	    					socketOut.write(".\n");
-		    	    				socketOut.flush();
-		        			}
-        				}catch(IndexOutOfBoundsException e) {
-	    					socketOut.write("-ERR index is out of bounds\n");
-	    					socketOut.flush();		
-        				}
-        			}	
-        		}
-        	}
-        } catch (IOException e) {
-            System.err.println("Error in client's connection handling.");
-            e.printStackTrace();
-        }
+    protected void start() {
+    	reply("+OK POP3 server ready\n");
+    	authorizationState = true;
+    	transactionState = false;
     }
-    
+
     /**
-     * Helper method for run() that checks if the passed user string is in the users.txt file
-     * @param String user, the username and domain formatted as (username@domain format) 
-     * @returns true if in file, else false
+     * Tells the client the server cannot accept the session because there are too many connections.
      */
-    private boolean verifyUsername(String user) {
-		try {
-	    	File users = new File("users.txt");
-			BufferedReader reader = new BufferedReader(new FileReader(users));
-			String line;
-			while((line = reader.readLine()) != null) {
-				String[] username = line.split(" ");
-				if(user.equalsIgnoreCase(username[0])) {
-					reader.close();
-					return true;
-				}
-			}	
-			reader.close();
-		}catch(IOException e){
-			e.printStackTrace();
-		}
+    @Override
+    protected void rejectBusy() {
+    	reply("-ERR too many connections, try again later\n");
+    }
+
+    /**
+     * Supports command pipelining (RFC 2449): the responses to all commands received together are sent in a single
+     * write once the available input has been processed, instead of one write per response.
+     *
+     * @return false, as responses are coalesced.
+     */
+    @Override
+    protected boolean flushesEachReply() {
     	return false;
-    }    
+    }
 
     /**
-     * Main process for the POP3 server. Handles the argument parsing and creates a listening server socket. Repeatedly
-     * accepts new connections from individual clients, creating a new server instance that handles communication with
-     * that client in a separate thread.
+     * Limits command lines to 512 octets, including CRLF, which leaves room for long arguments (e.g., passwords) beyond
+     * the 255 octets required by RFC 2449.
      *
-     * @param args The command-line arguments.
-     * @throws IOException In case of an exception creating the server socket or accepting new connections.
+     * @return The maximum line length.
      */
-    public static void main(String[] args) throws IOException {
+    @Override
+    protected int getMaxLineLength() {
+        return MAX_LINE_LENGTH;
+    }
+
+    /**
+     * Refuses a command line that is too long.
+     */
+    @Override
+    protected void handleLineTooLong() {
+        reply("-ERR line too long\n");
+    }
+
+    /**
+     * Hides the password of a PASS command from the protocol log.
+     *
+     * @param line The request line.
+     * @return The request line, with the argument of PASS masked.
+     */
+    @Override
+    protected String describeRequest(String line) {
+        if (line.regionMatches(true, 0, "PASS ", 0, 5))
+            return line.substring(0, 5) + "****";
+        return line;
+    }
+
+    /**
+     * Processes an individual request line according to the POP3 protocol and queues the corresponding response.
+     * Empty request lines are ignored. The QUIT command closes the session.
+     *
+     * @param line The request line, without its line terminator.
+     * @throws IOException If there is an error reading a message from the mailbox.
+     */
+    @Override
+    protected void handleLine(String line) throws IOException {
+        String[] request = line.split(" ");
+
+        if(request[0].toUpperCase().equals("QUIT")) { //handle QUIT
+
+            if(mailbox != null && transactionState) {
+                mailbox.deleteMessagesTaggedForDeletion();
+            }
+            releaseMaildrop();
 
-        if (args.length != 1) {
-            throw new RuntimeException("This application must be executed with exactly one argument, the listening port.");
+            reply("+OK POP3 server signing off\n");
+            closeWhenFlushed();
+            return;
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
-            serverSocket.setReuseAddress(true);
+        if(request[0].toUpperCase().equals("NOOP")) { //handle NOOP
+            reply("+OK hello\n");
+        }
+
+        if(request[0].toUpperCase().equals("CAPA")) { //handle CAPA, listing the supported capabilities
+            reply("+OK capability list follows\n");
+            for(String capability : CAPABILITIES) {
+                reply(capability + "\n");
+            }
+            reply(".\n");
+        }
 
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
+        if(request[0].toUpperCase().equals("USER")) { //handle USER
+            if(!authorizationState) {
+                reply("-ERR already logged in\n");
+            }else {
+                if(request.length != 2 || !verifyUsername(request[1])){
+                    reply("-ERR " + user + " is not a valid mailbox\n");
+                }else {
+                    user = request[1];
+                    reply("+OK " + user + " is a valid mailbox\n");
+                }
+            }
+        }
+
+        if(request[0].toUpperCase().equals("PASS")) { //handle PASS
+            if(!authorizationState) {
+                reply("-ERR already logged in\n");
+            }else {
+                if(request.length != 2){
+                    reply("-ERR PASS must have a single argument\n");
+                }else if(user != null){
+                    try {
+                        mailbox = new Mailbox(user);
+                        if(!mailbox.authenticate(request[1])) {
+                            reply("-ERR invalid password\n");
+                        }else if((maildropLock = mailbox.lockMaildrop()) == null) { //another session has it (RFC 1939)
+                            reply("-ERR [IN-USE] maildrop already locked\n");
+                        }else {
+                            mailbox.loadMessages();
+                            transactionState = true;
+                            authorizationState = false;
+                            reply("+OK " + user + " has " + mailbox.size(false) + " messages\n");
+                        }
+                    }catch(MailboxNotAuthenticatedException e) {
+                        releaseMaildrop();
+                        reply("-ERR invalid password\n");
+                    }catch(IOException e) {
+                        releaseMaildrop();
+                        reply("-ERR unable to lock maildrop\n");
+                    }
+                }
+            }
+        }
+
+        if(request[0].toUpperCase().equals("STAT")) { //handle STAT
+            if(!transactionState) {
+                reply("-ERR please log in\n");
+            }else {
+                reply("+OK " + mailbox.size(false) + " " + mailbox.getTotalUndeletedFileSize(false) + "\n");
+            }
+        }
+
+        if(request[0].toUpperCase().equals("LIST")) { //handle LIST
+            if(!transactionState) {
+                reply("-ERR please log in\n");
+            }else {
+                if(request.length == 1){ //no argument LIST
+                    reply("+OK " + mailbox.size(false) + " messages " + "(" +
+                            mailbox.getTotalUndeletedFileSize(false) + " bytes)\n");
+                    reply(mailbox.getScanListing());
+                    reply(".\n");
+                }else if(request.length == 2) { //argument LIST
+                    try{
+                        MailMessage message = mailbox.getMailMessage(Integer.parseInt(request[1]));
+                        if(message.isDeleted()){
+                            reply("-ERR message was deleted\n");
+                        }else {
+                            reply("+OK " + request[1] + " " + message.getFileSize() + "\n");
+                        }
+                    }catch(IndexOutOfBoundsException e) {
+                        reply("-ERR index is out of bounds\n");
+                    }
+                }
+            }
+        }
+
+        if(request[0].toUpperCase().equals("DELE")) { //handle DELE
+            if(!transactionState) {
+                reply("-ERR please log in\n");
+            }else {
+                if(request.length != 2){
+                    reply("-ERR please input file number\n");
+                }else {
+                    try {
+                        MailMessage message = mailbox.getMailMessage(Integer.parseInt(request[1]));
+                        message.tagForDeletion();
+                        reply("+OK message deleted\n");
+                    }catch(IndexOutOfBoundsException e) {
+                        reply("-ERR index is out of bounds\n");
+                    }
+                }
+            }
+        }
+
+        if(request[0].toUpperCase().equals("RSET")) { //handle RSET
+            if(!transactionState) {
+                reply("-ERR please log in\n");
+            }else {
+                mailbox.undeleteAll(); //only visits the messages that were tagged
+                reply("+OK mailbox has " + mailbox.size(false) + " messages " + "(" +
+                        mailbox.getTotalUndeletedFileSize(false) + " bytes)\n");
+            }
+        }
+
+        if(request[0].toUpperCase().equals("RETR")) { //handle RETR
+            if(!transactionState) {
+                reply("-ERR please log in\n");
+            }else {
                 try {
-                    MyPOPServer handler = new MyPOPServer(socket);
-                    handler.start();
-                } catch (IOException e) {
-                    System.err.println("Error setting up an individual client's handler.");
-                    e.printStackTrace();
+                    MailMessage message = mailbox.getMailMessage(Integer.parseInt(request[1]));
+                    if(message.isDeleted()){
+                        reply("-ERR message was deleted\n");
+                    }else {
+                        // Messages are stored dot-stuffed with CRLF line endings, so the content is sent as is,
+                        // straight from the content cache for frequently retrieved messages
+                        long size = message.getFileSize();
+                        ByteBuffer cached = message.getCachedContent();
+                        boolean terminated;
+                        if(cached != null) {
+                            reply("+OK " + size + " bytes\n");
+                            terminated = size == 0 || cached.get(cached.limit() - 1) == '\n';
+                            replyBuffer(cached);
+                        }else {
+                            FileChannel content = message.openContent();
+                            long offset = content.position();
+                            reply("+OK " + size + " bytes\n");
+                            terminated = endsWithLineBreak(content, offset, size);
+                            replyFile(content, offset, size);
+                        }
+                        reply(terminated ? ".\r\n" : "\r\n.\r\n");
+                    }
+                }catch(IndexOutOfBoundsException e) {
+                    reply("-ERR index is out of bounds\n");
                 }
             }
         }
+
+        if(request[0].toUpperCase().equals("TOP")) { //handle TOP, sending the headers and the first lines of the body
+            if(!transactionState) {
+                reply("-ERR please log in\n");
+            }else if(request.length != 3 || !request[2].matches("\\d{1,18}")) {
+                reply("-ERR TOP needs a message number and a number of lines\n");
+            }else {
+                try {
+                    MailMessage message = mailbox.getMailMessage(Integer.parseInt(request[1]));
+                    long lines = Long.parseLong(request[2]);
+                    if(message.isDeleted()){
+                        reply("-ERR message was deleted\n");
+                    }else {
+                        // The end of the headers is recorded in the index, so only the requested lines of the
+                        // body are searched; messages stored before it was recorded are searched from the start
+                        long size = message.getFileSize();
+                        long headerSize = message.getHeaderSize();
+                        ByteBuffer cached = message.getCachedContent();
+                        boolean terminated;
+                        if(cached != null) {
+                            int start = cached.position();
+                            int headers = start + (int) (headerSize >= 0 ? headerSize : MessageHeaders.find(cached));
+                            ByteBuffer top = cached.duplicate();
+                            top.limit(MessageHeaders.skipLines(cached, headers, lines));
+                            reply("+OK top of message follows\n");
+                            terminated = top.limit() == start || top.get(top.limit() - 1) == '\n';
+                            replyBuffer(top);
+                        }else {
+                            FileChannel content = message.openContent();
+                            long offset = content.position();
+                            if(headerSize < 0)
+                                headerSize = MessageHeaders.find(content, offset, size);
+                            long end = MessageHeaders.skipLines(content, offset + headerSize, offset + size, lines);
+                            reply("+OK top of message follows\n");
+                            terminated = endsWithLineBreak(content, offset, end - offset);
+                            replyFile(content, offset, end - offset);
+                        }
+                        reply(terminated ? ".\r\n" : "\r\n.\r\n");
+                    }
+                }catch(IndexOutOfBoundsException e) {
+                    reply("-ERR index is out of bounds\n");
+                }
+            }
+        }
+
+        if(request[0].toUpperCase().equals("UIDL")) { //handle UIDL, answered from the mailbox index
+            if(!transactionState) {
+                reply("-ERR please log in\n");
+            }else {
+                if(request.length == 1){ //no argument UIDL
+                    String listing = mailbox.getUniqueIdListing();
+                    if(listing == null) { //the mailbox index could not be read, so there are no persistent ids
+                        reply(UIDL_UNAVAILABLE);
+                    }else {
+                        reply("+OK unique-id listing follows\n");
+                        reply(listing);
+                        reply(".\n");
+                    }
+                }else if(request.length == 2) { //argument UIDL
+                    try{
+                        MailMessage message = mailbox.getMailMessage(Integer.parseInt(request[1]));
+                        if(message.isDeleted()){
+                            reply("-ERR message was deleted\n");
+                        }else if(message.getUniqueId() == null) {
+                            reply(UIDL_UNAVAILABLE);
+                        }else {
+                            reply("+OK " + request[1] + " " + message.getUniqueId() + "\n");
+                        }
+                    }catch(IndexOutOfBoundsException e) {
+                        reply("-ERR index is out of bounds\n");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the session's maildrop lock when the connection is closed without QUIT. Messages tagged for deletion
+     * are not deleted in that case, as per RFC 1939.
+     */
+    @Override
+    protected void onClose() {
+    	releaseMaildrop();
+    }
+
+    /**
+     * Helper method that releases the maildrop lock, if the session holds it, so other sessions may open the maildrop.
+     */
+    private void releaseMaildrop() {
+    	if(maildropLock != null) {
+    		maildropLock.close();
+    		maildropLock = null;
+    	}
+    }
+
+    /**
+     * Helper method for RETR and TOP that checks if a message ends with a line break. Messages stored by older versions
+     * of the server may lack the final line break, which must then be added before the terminating "." line.
+     *
+     * @param content The channel with the message content.
+     * @param offset  The offset of the message in the channel.
+     * @param size    The size of the message, in bytes.
+     * @return true if the message is empty or its last byte is a line feed, and false otherwise.
+     * @throws IOException If there is an error reading the message.
+     */
+    private static boolean endsWithLineBreak(FileChannel content, long offset, long size) throws IOException {
+    	if(size == 0)
+    		return true;
+    	ByteBuffer last = ByteBuffer.allocate(1);
+    	return content.read(last, offset + size - 1) == 1 && last.get(0) == '\n';
+    }
+    
+    /**
+     * Helper method that checks if the passed user string is in the users database. Uses the shared user directory,
+     * so the check does not read the users file.
+     * @param String user, the username and domain formatted as (username@domain format)
+     * @returns true if in the database, else false
+     */
+    private boolean verifyUsername(String user) {
+    	return Mailbox.isValidUser(user);
+    }
+
+    /**
+     * Main process for the POP3 server. Handles the argument parsing and creates a listening server socket. Repeatedly
+     * accepts new connections from individual clients, creating a new server instance that handles communication with
+     * that client, either in a separate thread or in a shared non-blocking event loop, depending on the connection
+     * mode given as the optional second argument. Before accepting connections, resumes removing the messages deleted
+     * by a previous run whose content was not removed yet.
+     *
+     * @param args The command-line arguments.
+     * @throws IOException In case of an exception creating the server socket or accepting new connections.
+     */
+    public static void main(String[] args) throws IOException {
+        ReclamationWorker.getInstance().recover();
+        ServerLauncher.launch(args, MyPOPServer::new);
     }
 }
\ No newline at end of file
@@ -1,188 +1,406 @@
 package mailserver.net;
 
-import mailserver.mailbox.MailWriter;
+import mailserver.mailbox.DeliveryJournal;
+import mailserver.mailbox.MailOutputStream;
 import mailserver.mailbox.Mailbox;
 import mailserver.mailbox.Mailbox.InvalidUserException;
+import mailserver.metrics.Metrics;
+import mailserver.metrics.ProtocolMetrics;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 
-public class MySMTPServer extends Thread {
+public class MySMTPServer extends Session {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int MAX_LINE_LENGTH = 1000; //command and text lines, including CRLF (RFC 5321)
+    private static final String LINE_TOO_LONG = "500 Line too long\n";
+    private static final String[] EXTENSIONS = {"PIPELINING", "8BITMIME", "CHUNKING", "BINARYMIME"};
+    private static final ProtocolMetrics METRICS = Metrics.getInstance().protocol("smtp",
+            "RCPT", "MAIL", "DATA", "BDAT", "EHLO", "HELO", "RSET", "NOOP", "VRFY", "QUIT");
+    private static final String HOST_NAME = getHostName(); //looked up once, as the lookup may block on DNS
 
-    private final Socket socket;
-    private final BufferedReader socketIn;
-    private final PrintWriter socketOut;
     private String domainName;
     private boolean EHLOreceieved = false;
     private boolean MAILreceived = false;
     private List<Mailbox> recipients = new ArrayList<Mailbox>();
-    private MailWriter mailWriter;
+    private MailOutputStream mailStream;
+    private ByteBuffer mailBuffer;
+    private boolean DATAreceived = false;
+    private String DATAerror;
+    private boolean BINARYMIMErequested = false;
+    private boolean BDATfailed = false;
+    private long chunkSize;
+    private boolean lastChunk;
+    private String chunkError;
 
     // TODO Additional properties, if needed
 
     /**
      * Initializes an object responsible for a connection to an individual client.
      *
-     * @param socket The socket associated to the accepted connection.
+     * @param channel The socket channel associated to the accepted connection.
      * @throws IOException If there is an error attempting to retrieve the socket's information.
      */
-    public MySMTPServer(Socket socket) throws IOException {
-        this.socket = socket;
-        this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.socketOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+    public MySMTPServer(SocketChannel channel) throws IOException {
+        super(channel, METRICS);
+    }
+
+    /**
+     * Sends the initial welcome message.
+     */
+    @Override
+    protected void start() {
+    	reply("220 " + HOST_NAME +  " Simple Mail Transfer Service Ready\n");
+    }
+
+    /**
+     * Tells the client the service is temporarily unavailable because there are too many connections.
+     */
+    @Override
+    protected void rejectBusy() {
+    	reply("421 " + HOST_NAME + " Service not available, too many connections\n");
+    }
+
+    /**
+     * While a message body is being received (after the DATA command), saves each raw line to the recipients'
+     * mailboxes until the terminating "." line, without decoding it. Lines are kept dot-stuffed and stored with CRLF,
+     * so POP3 can send the file without changes. If the message cannot be saved, or one of its lines is too long, it
+     * is discarded, the rest of the body is read without being saved, and the terminating line is answered with an
+     * error.
+     *
+     * @param line   Array containing the line.
+     * @param offset Offset of the first byte of the line in the array.
+     * @param length Length of the line, including its terminator.
+     * @return true if the line is part of a message body, and false if it is a command.
+     */
+    @Override
+    protected boolean handleRawLine(byte[] line, int offset, int length) {
+    	if(!DATAreceived)
+    		return false;
+    	boolean crlf = length > 1 && line[offset + length - 2] == '\r';
+    	int contentLength = length - (crlf ? 2 : 1);
+    	if(contentLength == 1 && line[offset] == '.') { //end of the message body
+    		if(DATAerror == null) {
+    			try {
+    				mailStream.close();
+    			}catch(IOException e) { //the message could not be delivered
+    				failData("451 Requested action aborted: local error in processing\n");
+    			}
+    		}
+        	mailStream = null;
+        	DATAreceived = false;
+    		if(DATAerror != null) {
+    			reply(DATAerror);
+    			DATAerror = null;
+    		}else {
+    			reply("250 OK\n");
+    		}
+        	return true;
+    	}
+    	if(DATAerror != null) //the message was discarded, so the rest of the body is ignored
+    		return true;
+    	try {
+    		if(crlf) {
+    			mailStream.write(line, offset, length);
+    		}else {
+    			mailStream.write(line, offset, contentLength);
+    			mailStream.write(CRLF, 0, CRLF.length);
+    		}
+    	}catch(IOException e) { //if the message cannot be saved, the rest of the body is discarded
+    		failData("451 Requested action aborted: local error in processing\n");
+    	}
+    	return true;
+    }
+
+    /**
+     * Aborts the message being received with DATA; the rest of the body is read and ignored, and the end of the body
+     * is answered with an error.
+     *
+     * @param error The response to the end of the body.
+     */
+    private void failData(String error) {
+    	if(mailStream != null)
+    		mailStream.discard();
+    	mailStream = null;
+    	DATAerror = error;
+    }
+
+    /**
+     * Limits command lines and message text lines to 1000 octets, including CRLF (RFC 5321, section 4.5.3.1).
+     *
+     * @return The maximum line length.
+     */
+    @Override
+    protected int getMaxLineLength() {
+    	return MAX_LINE_LENGTH;
     }
 
     /**
-     * Handles the communication with an individual client. Must send the initial welcome message, and then repeatedly
-     * read requests, process the individual operation, and return a response, according to the SMTP protocol. Empty
-     * request lines should be ignored. Only returns if the connection is terminated or if the QUIT command is issued.
-     * Must close the socket connection before returning.
+     * Refuses a line that is too long: a command is answered right away, while a message is discarded and refused
+     * once its body ends, as no response can be sent in the middle of the body.
      */
     @Override
-    public void run() {
-        try (this.socket) {
-
-        	//send initial welcome message
-        	socketOut.write("220 " + getHostName() +  " Simple Mail Transfer Service Ready\n");
-        	socketOut.flush();
-        	
-        	//read and process requests according to SMTP protocol (only returns if the connection is terminated or if the QUIT command is issued 	
-        	while(socket.isConnected()) {
-        		String[] request = socketIn.readLine().split(" ");
-        		
-        		if(request[0].toUpperCase().equals("QUIT")) { //handle QUIT
-                	socketOut.write("221 MySMTPServer Service closing transmission channel\n");
-                	socketOut.flush();
-                	socket.close();
-                	return;
-        		}
-        		
-        		if(request[0].toUpperCase().equals("NOOP")) { //handle NOOP
-                	socketOut.write("250 OK\n");
-                	socketOut.flush();
-        		}
-        		
-        		if(request[0].toUpperCase().equals("EHLO") || request[0].toUpperCase().equals("HELO")) { //handle HELO/EHLO
-        			domainName = request[1];
-        			EHLOreceieved = true;
-                	socketOut.write("250 " + getHostName() + " greets " + domainName + "\n");
-                	socketOut.flush();
-        		}
-        		
-        		if(request[0].toUpperCase().equals("VRFY")) { //handle VRFY
-        			if(request.length != 2) { //invalid arguments
-                    	socketOut.write("501 Incorrect command format\n");
-                    	socketOut.flush();
-        			}else if (verifyUsername(request[1])){
-                    	socketOut.write("250 " + request[1] + "\n");
-                    	socketOut.flush();
-        			}else {
-                    	socketOut.write("550 Username does not exist\n");
-                    	socketOut.flush();
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("MAIL")) { //handle MAIL FROM
-        			if(request.length != 2 || !request[1].toUpperCase().matches("FROM:<.*>")) { //invalid arguments
-                    	socketOut.write("501 Incorrect command format\n");
-                    	socketOut.flush();
-        			}else if(EHLOreceieved == false) { //if we did not receive an EHLO prior to receiving MAIL FROM request
-                    	socketOut.write("503 EHLO command not received\n");
-                    	socketOut.flush();
-        			}else {
-        				MAILreceived = true; //we received the MAIL command
-        				recipients.clear(); //clear the recipients list
-                    	socketOut.write("250 OK\n");
-                    	socketOut.flush();        				
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("RCPT")) {
-        			if(request.length != 2 || !request[1].toUpperCase().matches("TO:<.*>")) { //invalid arguments
-                    	socketOut.write("501 Incorrect command format\n");
-                    	socketOut.flush();
-        			}else if(MAILreceived == false) { //if we did not receive a MAIL request prior to the RCPT request
-                    	socketOut.write("503 MAIL command not received\n");
-                    	socketOut.flush();
-        			}else {
-        				try {
-	        				String recipient = request[1].substring(4, request[1].length() - 1);
-		        			recipients.add(new Mailbox(recipient)); //add the new recipient's mailbox to the recipients list    				
-	        				socketOut.write("250 OK\n");
-	                    	socketOut.flush();
-
-        				}catch(InvalidUserException e) { //if the destination address could not be found
-            				socketOut.write("550 mailbox not found\n");
-                        	socketOut.flush();
-        				}
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("DATA")) {
-        			if(recipients.isEmpty()) { //no recipients
-                    	socketOut.write("503 bad sequence of commands\n");
-                    	socketOut.flush();
-        			}else {
-        				socketOut.write("354 enter the message body, followed by a <CRLF>.<CRLF>\n");
-                    	socketOut.flush();
-                		mailWriter = new MailWriter(recipients);
-                		String line = socketIn.readLine();
-                		while(!line.equals(".")) {
-                    		mailWriter.write(line + "\n");
-                    		line = socketIn.readLine(); //read next line
-                    	}
-                    	mailWriter.flush();
-                    	mailWriter.close();
-                    	socketOut.write("250 OK\n");
-                    	socketOut.flush();
-        			}
-        		}
-        		
-        		if(request[0].toUpperCase().equals("RSET")) {
-        			recipients.clear();
-        			MAILreceived = false;
-                    socketOut.write("250 OK\n");
-                    socketOut.flush();
-        		}
+    protected void handleLineTooLong() {
+    	if(DATAreceived) {
+    		if(DATAerror == null)
+    			failData(LINE_TOO_LONG);
+    	}else {
+    		reply(LINE_TOO_LONG);
+    	}
+    }
+
+    /**
+     * Saves a block of a message chunk received with the BDAT command to the recipients' mailboxes, without looking
+     * for lines. Once the whole chunk was received, sends its response, and completes the message if it was the last
+     * chunk. If the chunk was refused when the command was received, its content is read and discarded.
+     *
+     * @param content  Array containing the block.
+     * @param offset   Offset of the first byte of the block in the array.
+     * @param length   Length of the block.
+     * @param complete true if this is the last block of the chunk.
+     */
+    @Override
+    protected void handleContent(byte[] content, int offset, int length, boolean complete) {
+    	if(chunkError == null) {
+    		try {
+    			mailStream.writeContent(content, offset, length);
+    		}catch(IOException e) { //if the message cannot be saved, the rest of the chunk is discarded
+    			failChunk();
+    		}
+    	}
+    	if(!complete)
+    		return;
+    	if(chunkError != null) {
+        	reply(chunkError);
+    	}else if(lastChunk) { //end of the message
+    		try {
+    			mailStream.close();
+            	reply("250 OK " + chunkSize + " octets received, message accepted\n");
+    		}catch(IOException e) {
+    			failChunk();
+            	reply(chunkError);
+    		}
+        	mailStream = null;
+    	}else {
+        	reply("250 OK " + chunkSize + " octets received\n");
+    	}
+    }
+
+    /**
+     * Aborts the message being received with BDAT after a local error; the following chunks are refused until a new
+     * transaction is started.
+     */
+    private void failChunk() {
+    	mailStream.discard();
+    	mailStream = null;
+    	BDATfailed = true;
+    	chunkError = "451 Requested action aborted: local error in processing\n";
+    }
+
+    /**
+     * Discards a message body that was not completely received when the connection is closed.
+     */
+    @Override
+    protected void onClose() {
+    	if(mailStream != null)
+    		mailStream.discard();
+    }
+
+    /**
+     * Supports command pipelining (RFC 2920): the responses to all commands received together are sent in a single
+     * write once the available input has been processed, instead of one write per response.
+     *
+     * @return false, as responses are coalesced.
+     */
+    @Override
+    protected boolean flushesEachReply() {
+    	return false;
+    }
+
+    /**
+     * Processes an individual request line according to the SMTP protocol. Empty request lines are ignored. The QUIT
+     * command closes the session.
+     *
+     * @param line The request line, without its line terminator.
+     * @throws IOException If there is an error processing an empty BDAT chunk.
+     */
+    @Override
+    protected void handleLine(String line) throws IOException {
+    	String[] request = line.split(" ");
+    		
+    	if(request[0].toUpperCase().equals("QUIT")) { //handle QUIT
+        	reply("221 MySMTPServer Service closing transmission channel\n");
+        	closeWhenFlushed();
+        	return;
+    	}
+    		
+    	if(request[0].toUpperCase().equals("NOOP")) { //handle NOOP
+        	reply("250 OK\n");
+    	}
+    		
+    	if(request[0].toUpperCase().equals("HELO")) { //handle HELO
+    		domainName = request[1];
+    		EHLOreceieved = true;
+        	reply("250 " + HOST_NAME + " greets " + domainName + "\n");
+    	}
+    		
+    	if(request[0].toUpperCase().equals("EHLO")) { //handle EHLO, listing the supported extensions
+    		domainName = request[1];
+    		EHLOreceieved = true;
+        	reply("250-" + HOST_NAME + " greets " + domainName + "\n");
+        	for(int i = 0; i < EXTENSIONS.length; i++) {
+        		reply((i == EXTENSIONS.length - 1 ? "250 " : "250-") + EXTENSIONS[i] + "\n");
         	}
-        	
-        } catch (IOException e) {
-            System.err.println("Error in client's connection handling.");
-            e.printStackTrace();
-        }
+    	}
+    		
+    	if(request[0].toUpperCase().equals("VRFY")) { //handle VRFY
+    		if(request.length != 2) { //invalid arguments
+            	reply("501 Incorrect command format\n");
+    		}else if (verifyUsername(request[1])){
+            	reply("250 " + request[1] + "\n");
+    		}else {
+            	reply("550 Username does not exist\n");
+    		}
+    	}
+    		
+    	if(request[0].toUpperCase().equals("MAIL")) { //handle MAIL FROM
+    		String body = request.length < 2 ? null : getBodyType(request);
+    		if(request.length < 2 || !request[1].toUpperCase().matches("FROM:<.*>")) { //invalid arguments
+            	reply("501 Incorrect command format\n");
+    		}else if(body == null) { //unknown parameters
+            	reply("555 MAIL FROM parameters not recognized or not implemented\n");
+    		}else if(EHLOreceieved == false) { //if we did not receive an EHLO prior to receiving MAIL FROM request
+            	reply("503 EHLO command not received\n");
+    		}else {
+    			MAILreceived = true; //we received the MAIL command
+    			recipients.clear(); //clear the recipients list
+    			resetChunks();
+    			BINARYMIMErequested = body.equals("BINARYMIME"); //binary content can only be sent with BDAT
+            	reply("250 OK\n");
+    		}
+    	}
+    		
+    	if(request[0].toUpperCase().equals("RCPT")) {
+    		if(request.length != 2 || !request[1].toUpperCase().matches("TO:<.*>")) { //invalid arguments
+            	reply("501 Incorrect command format\n");
+    		}else if(MAILreceived == false) { //if we did not receive a MAIL request prior to the RCPT request
+            	reply("503 MAIL command not received\n");
+    		}else {
+    			try {
+        			String recipient = request[1].substring(4, request[1].length() - 1);
+	        		recipients.add(new Mailbox(recipient)); //add the new recipient's mailbox to the recipients list
+        			reply("250 OK\n");
+    			}catch(InvalidUserException e) { //if the destination address could not be found
+        			reply("550 mailbox not found\n");
+    			}
+    		}
+    	}
+    		
+    	if(request[0].toUpperCase().equals("DATA")) {
+    		if(recipients.isEmpty() || mailStream != null) { //no recipients, or a message is being sent with BDAT
+            	reply("503 bad sequence of commands\n");
+    		}else if(BINARYMIMErequested) {
+            	reply("503 BINARYMIME content must be sent with BDAT\n");
+    		}else {
+    			try {
+    				if(mailBuffer == null) //reused by every message in the session
+    					mailBuffer = ByteBuffer.allocateDirect(MailOutputStream.DEFAULT_BUFFER_SIZE);
+        			mailStream = new MailOutputStream(recipients, mailBuffer, false);
+    				reply("354 enter the message body, followed by a <CRLF>.<CRLF>\n");
+        			DATAreceived = true; //following lines are the message body
+    			}catch(IOException e) { //if the recipients' mailboxes cannot store a new message
+    				reply("451 Requested action aborted: local error in processing\n");
+    			}
+    		}
+    	}
+    		
+    	if(request[0].toUpperCase().equals("BDAT")) { //handle BDAT, a chunk of the message of known size
+    		chunkSize = -1;
+    		if(request.length == 2 || (request.length == 3 && request[2].toUpperCase().equals("LAST"))) {
+    			try {
+    				chunkSize = Long.parseLong(request[1]);
+    			}catch(NumberFormatException e) { //not a valid size
+    			}
+    		}
+    		if(chunkSize < 0) { //invalid arguments, so the size of the chunk is unknown
+            	reply("501 Incorrect command format\n");
+    		}else {
+    			lastChunk = request.length == 3;
+    			chunkError = null;
+    			if(recipients.isEmpty() || BDATfailed) { //no recipients, or a previous chunk failed
+    				chunkError = "503 bad sequence of commands\n";
+    			}else if(mailStream == null) { //first chunk of the message
+    				try {
+        				if(mailBuffer == null) //reused by every message in the session
+        					mailBuffer = ByteBuffer.allocateDirect(MailOutputStream.DEFAULT_BUFFER_SIZE);
+        				//binary content keeps its line endings, text content is stored with CRLF like DATA
+            			mailStream = new MailOutputStream(recipients, mailBuffer, BINARYMIMErequested);
+    				}catch(IOException e) { //if the recipients' mailboxes cannot store a new message
+    					BDATfailed = true;
+        				chunkError = "451 Requested action aborted: local error in processing\n";
+    				}
+    			}
+    			expectContent(chunkSize); //the chunk is read even if it is refused
+    		}
+    	}
+    		
+    	if(request[0].toUpperCase().equals("RSET")) {
+    		recipients.clear();
+    		MAILreceived = false;
+    		resetChunks();
+    		BINARYMIMErequested = false;
+            reply("250 OK\n");
+    	}
     }
     
     /**
-     * Helper method for run() that checks if the passed user string is in the users.txt file
-     * @param String user, the username and domain formatted as (username@domain format) 
-     * @returns true if in file, else false
+     * Helper method that discards any message being received with BDAT, as a new transaction starts.
+     */
+    private void resetChunks() {
+    	if(mailStream != null) {
+    		mailStream.discard();
+    		mailStream = null;
+    	}
+    	BDATfailed = false;
+    }
+
+    /**
+     * Helper method that reads the body type from the parameters of a MAIL FROM request (RFC 1652 and RFC 3030).
+     * @param String[] request, the request split into words
+     * @returns the body type (7BIT by default, 8BITMIME or BINARYMIME), or null if there is any unknown parameter
+     */
+    private static String getBodyType(String[] request) {
+    	String body = "7BIT";
+    	for(int i = 2; i < request.length; i++) {
+    		String parameter = request[i].toUpperCase();
+    		if(parameter.equals("BODY=7BIT") || parameter.equals("BODY=8BITMIME") || parameter.equals("BODY=BINARYMIME")) {
+    			body = parameter.substring(5);
+    		}else {
+    			return null;
+    		}
+    	}
+    	return body;
+    }
+
+    /**
+     * Helper method that checks if the passed user string is in the users database. Uses the shared user directory,
+     * so the check does not read the users file.
+     * @param String user, the username and domain formatted as (username@domain format)
+     * @returns true if in the database, else false
      */
     private boolean verifyUsername(String user) {
-		try {
-	    	File users = new File("users.txt");
-			BufferedReader reader = new BufferedReader(new FileReader(users));
-			String line;
-			while((line = reader.readLine()) != null) {
-				String[] username = line.split(" ");
-				if(user.equalsIgnoreCase(username[0])) {
-					reader.close();
-					return true;
-				}
-			}	
-			reader.close();
-		}catch(IOException e){
-			e.printStackTrace();
-		}
-    	return false;
+    	return Mailbox.isValidUser(user);
     }
     
     /**
-     * Retrieves the name of the current host. Used in the response of commands like HELO and EHLO.
+     * Retrieves the name of the current host. Called once, when the class is loaded; the name is then used in the
+     * greeting and in the response of commands like HELO and EHLO.
      * @return A string corresponding to the name of the current host.
      */
     private static String getHostName() {
@@ -200,32 +418,16 @@ public class MySMTPServer extends Thread {
     /**
      * Main process for the SMTP server. Handles the argument parsing and creates a listening server socket. Repeatedly
      * accepts new connections from individual clients, creating a new server instance that handles communication with
-     * that client in a separate thread.
+     * that client, either in a separate thread or in a shared non-blocking event loop, depending on the connection
+     * mode given as the optional second argument. Before accepting connections, replays any deliveries left in the
+     * delivery journal by a previous run that did not stop cleanly.
      *
      * @param args The command-line arguments.
-     * @throws IOException In case of an exception creating the server socket or accepting new connections.
+     * @throws IOException In case of an exception replaying the journal, creating the server socket or accepting new
+     *                     connections.
      */
     public static void main(String[] args) throws IOException {
-
-        if (args.length != 1) {
-            throw new RuntimeException("This application must be executed with exactly one argument, the listening port.");
-        }
-
-        try (ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[0]))) {
-            serverSocket.setReuseAddress(true);
-            System.out.println("Waiting for connections on port " + serverSocket.getLocalPort() + "...");
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("Accepted a connection from " + socket.getRemoteSocketAddress());
-                try {
-                    MySMTPServer handler = new MySMTPServer(socket);
-                    handler.start();
-                } catch (IOException e) {
-                    System.err.println("Error setting up an individual client's handler.");
-                    e.printStackTrace();
-                }
-            }
-        }
+        DeliveryJournal.getInstance().recover();
+        ServerLauncher.launch(args, MySMTPServer::new);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,229 @@
+package mailserver.net;
+
+import mailserver.log.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-driven server loop that multiplexes every client connection on a single selector thread. Each connection is
+ * associated to a Session state machine, which is fed with whatever input is available whenever the connection
+ * becomes readable, and whose queued output is written whenever the connection becomes writable.
+ * <p>
+ * Processing the requests may block on the disk, on file locks, or on CPU-bound work such as checking a password, so
+ * the input of a readable connection is processed by a pool of <code>mailserver.workerThreads</code> worker threads
+ * (twice the number of processors by default), while the selector thread goes on serving the other connections. The
+ * connection is not watched while its input is being processed, so a session is only ever used by one thread at a
+ * time; once the worker is done, the session is handed back to the selector thread, which writes its output and
+ * watches the connection again.
+ */
+public class SelectorServer {
+
+    public static final int WORKER_THREADS = Math.max(1, Integer.getInteger("mailserver.workerThreads",
+            2 * Runtime.getRuntime().availableProcessors()));
+
+    private final ServerSocketChannel serverChannel;
+    private final SessionFactory factory;
+    private final SessionLimiter limiter;
+    private final ExecutorService workers;
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    /**
+     * Creates a new event-driven server for an already bound server socket.
+     *
+     * @param serverChannel The bound listening channel.
+     * @param factory       Factory used to create the session state for each accepted connection.
+     * @param limiter       Admission control for the number of concurrent sessions.
+     */
+    public SelectorServer(ServerSocketChannel serverChannel, SessionFactory factory, SessionLimiter limiter) {
+        this.serverChannel = serverChannel;
+        this.factory = factory;
+        this.limiter = limiter;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(WORKER_THREADS, task -> {
+            Thread thread = new Thread(task, "session-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the accept/read/write loop. Only returns if the selector or the listening channel fail.
+     *
+     * @throws IOException In case of an exception in the selector or while accepting new connections.
+     */
+    public void run() throws IOException {
+        try (Selector selector = Selector.open()) {
+            this.selector = selector;
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                selector.select();
+                for (Runnable completion = completions.poll(); completion != null; completion = completions.poll())
+                    completion.run();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        process(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection, if any, and registers its session with the selector.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        Log.info("Accepted a connection from {}", channel.getRemoteAddress());
+        try {
+            Session session = factory.create(channel);
+            if (!limiter.tryAcquire()) {
+                session.reject();
+                return;
+            }
+            SelectionKey key = null;
+            try {
+                channel.configureBlocking(false);
+                session.begin();
+                key = channel.register(selector, 0, session);
+                update(key, session);
+            } catch (IOException | RuntimeException e) {
+                if (key != null)
+                    close(key);
+                else
+                    limiter.release();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("Error setting up an individual client's handler.", e);
+            channel.close();
+        }
+    }
+
+    /**
+     * Handles a ready event for an individual client connection: writes pending output, or has the input processed by
+     * a worker thread.
+     *
+     * @param key The selection key of the client connection.
+     */
+    private void process(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        try {
+            if (key.isReadable())
+                dispatch(key, session);
+            else
+                update(key, session);
+        } catch (IOException | RuntimeException e) {
+            // A failure in one session must not stop the loop serving every other connection
+            Log.error("Error in client's connection handling.", e);
+            close(key);
+        }
+    }
+
+    /**
+     * Stops watching a connection and has a worker thread read and process its input. Once the input is processed,
+     * the session is handed back to the selector thread, which updates the connection with <code>update()</code>.
+     *
+     * @param key     The selection key of the client connection.
+     * @param session The session state associated to the connection.
+     */
+    private void dispatch(SelectionKey key, Session session) {
+        key.interestOps(0);
+        workers.execute(() -> {
+            Exception error = null;
+            try {
+                session.readInput();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            Exception failure = error;
+            completions.add(() -> resume(key, session, failure));
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * Takes back a session whose input was processed by a worker thread, and updates its connection, or closes it if
+     * the processing failed. Runs on the selector thread.
+     *
+     * @param key     The selection key of the client connection.
+     * @param session The session state associated to the connection.
+     * @param error   The exception thrown while processing the input, or null if there was none.
+     */
+    private void resume(SelectionKey key, Session session, Exception error) {
+        if (error == null) {
+            try {
+                update(key, session);
+                return;
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+        }
+        Log.error("Error in client's connection handling.", error);
+        close(key);
+    }
+
+    /**
+     * Writes any pending output and updates the events the connection is interested in. Input is not read while there
+     * is pending output, so a client that does not read its responses cannot make the server buffer them indefinitely.
+     * Closes the connection once the session is closing and all its output has been written. Requests left over when
+     * the session suspended its input are handed to a worker as soon as the output is written, before reading again.
+     *
+     * @param key     The selection key of the client connection.
+     * @param session The session state associated to the connection.
+     */
+    private void update(SelectionKey key, Session session) throws IOException {
+        if (!session.writeOutput()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        if (session.isClosing()) {
+            close(key);
+            return;
+        }
+        if (session.hasUnprocessedInput()) {
+            dispatch(key, session);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Closes a client connection, cancels its registration with the selector and releases its session slot.
+     *
+     * @param key The selection key of the client connection.
+     */
+    private void close(SelectionKey key) {
+        Session session = (Session) key.attach(null);
+        if (session != null) {
+            session.release();
+            limiter.release();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Nothing else to do, the connection is being discarded
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package mailserver.net;
+
+import mailserver.log.Log;
+import mailserver.metrics.Metrics;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared startup logic for the SMTP and POP3 servers. Creates the listening socket and hands accepted connections to
+ * the protocol sessions using the selected connection model.
+ */
+public class ServerLauncher {
+
+    /**
+     * System property with the maximum number of concurrent sessions. Connections past the limit are refused with the
+     * protocol's busy response. Zero (the default) means no limit.
+     */
+    public static final String MAX_SESSIONS_PROPERTY = "mailserver.maxSessions";
+
+    /**
+     * Connection models supported by the servers.
+     */
+    public enum ConnectionMode {
+        /**
+         * Each connection is handled by its own platform thread using blocking I/O.
+         */
+        THREAD,
+        /**
+         * Each connection is handled by its own virtual thread using blocking I/O, submitted to a shared executor.
+         * Falls back to a pool of platform threads if the runtime does not support virtual threads.
+         */
+        VIRTUAL,
+        /**
+         * All connections are multiplexed on a single thread using non-blocking I/O and a selector, and their requests
+         * are processed by a pool of worker threads (see SelectorServer).
+         */
+        NIO
+    }
+
+    /**
+     * Parses the command-line arguments common to both servers: the listening port, optionally followed by the
+     * connection mode (<code>thread</code>, <code>virtual</code> or <code>nio</code>, default <code>thread</code>),
+     * and runs the server.
+     *
+     * @param args    The command-line arguments.
+     * @param factory Factory used to create the session state for each accepted connection.
+     * @throws IOException In case of an exception creating the server socket or accepting new connections.
+     */
+    public static void launch(String[] args, SessionFactory factory) throws IOException {
+
+        if (args.length < 1 || args.length > 2) {
+            throw new RuntimeException("This application must be executed with the listening port as the first " +
+                    "argument, optionally followed by the connection mode (thread, virtual or nio).");
+        }
+        ConnectionMode mode = args.length > 1 ? ConnectionMode.valueOf(args[1].toUpperCase()) : ConnectionMode.THREAD;
+        SessionLimiter limiter = new SessionLimiter(Integer.getInteger(MAX_SESSIONS_PROPERTY, 0));
+        Metrics.getInstance().serve();
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(Integer.parseInt(args[0])));
+
+            Log.info("Waiting for connections on port {} ({} mode)...", serverChannel.socket().getLocalPort(),
+                    mode.name().toLowerCase());
+            if (mode == ConnectionMode.NIO)
+                new SelectorServer(serverChannel, factory, limiter).run();
+            else if (mode == ConnectionMode.VIRTUAL)
+                acceptThreadPerConnection(serverChannel, factory, limiter, newVirtualThreadExecutor());
+            else
+                acceptThreadPerConnection(serverChannel, factory, limiter, task -> new Thread(task).start());
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Virtual threads are only available in Java 21
+     * and later, so the executor is looked up at runtime; older runtimes get a cached pool of platform threads instead.
+     *
+     * @return The executor shared by all sessions.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads are not available in this runtime, using platform threads instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Repeatedly accepts new connections from individual clients, creating a new session that handles communication
+     * with that client in a separate thread obtained from the executor. Connections past the session limit are
+     * refused right away.
+     *
+     * @param serverChannel The bound listening channel.
+     * @param factory       Factory used to create the session state for each accepted connection.
+     * @param limiter       Admission control for the number of concurrent sessions.
+     * @param executor      Executor that runs each session on its own thread.
+     * @throws IOException In case of an exception accepting new connections.
+     */
+    private static void acceptThreadPerConnection(ServerSocketChannel serverChannel, SessionFactory factory,
+                                                  SessionLimiter limiter, Executor executor) throws IOException {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            Log.info("Accepted a connection from {}", channel.getRemoteAddress());
+            try {
+                Session handler = factory.create(channel);
+                if (!limiter.tryAcquire()) {
+                    handler.reject();
+                    continue;
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            limiter.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // The executor could not start the session, so give up on this connection only
+                    limiter.release();
+                    channel.close();
+                    Log.error("Error starting an individual client's handler.", e);
+                }
+            } catch (IOException e) {
+                Log.error("Error setting up an individual client's handler.", e);
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package mailserver.net;
+
+import mailserver.log.Log;
+import mailserver.metrics.ProtocolMetrics;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Protocol state machine for an individual client connection. Subclasses implement the protocol itself by handling
+ * one request line at a time and queueing their replies with <code>reply()</code>. The same session can be driven
+ * either by a dedicated thread in blocking mode (see <code>run()</code>) or by a <code>SelectorServer</code> in
+ * non-blocking mode, which calls <code>readInput()</code> and <code>writeOutput()</code> when the channel is ready.
+ * Besides text replies, a session may queue regions of a file, which are sent straight from the file to the socket
+ * without being copied through the session.
+ * <p>
+ * Every session records its traffic and the time taken by each request into the metrics of its protocol (see
+ * ProtocolMetrics). Recording adds to shared counters without locking or allocating, so it is always enabled. The
+ * requests and responses of a session are also logged if its protocol logging is enabled (see Log), which is meant for
+ * troubleshooting individual clients.
+ */
+public abstract class Session implements Runnable {
+
+    public static final int READ_BUFFER_SIZE = 8192;
+    public static final int WRITE_CHUNK_SIZE = 8192;
+    public static final int CONTENT_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_QUEUED_WRITES = 64;
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    protected final SocketChannel channel;
+    private final ProtocolMetrics metrics;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private ByteBuffer replyBuffer = null;
+    private long contentRemaining = 0;
+    private boolean inputSuspended = false;
+    private boolean discardingLine = false;
+    private boolean closing = false;
+    private boolean started = false;
+    private boolean protocolLogging;
+    private String logName;
+
+    /**
+     * Initializes the session state for a connection to an individual client. Nagle's algorithm is disabled, as
+     * replies are already coalesced into as few writes as possible, and delaying the last small write of a response
+     * (e.g., the end of a RETR) until the client acknowledges the previous one would stall every command.
+     *
+     * @param channel The socket channel associated to the accepted connection.
+     * @param metrics The metrics of the protocol, shared by all its sessions.
+     * @throws IOException If the socket cannot be configured.
+     */
+    protected Session(SocketChannel channel, ProtocolMetrics metrics) throws IOException {
+        this.channel = channel;
+        this.metrics = metrics;
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (Log.isProtocolLogged(channel.socket().getInetAddress())) {
+            protocolLogging = true;
+            logName = String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+    }
+
+    /**
+     * Enables or disables the logging of this session's requests and responses. It is enabled to begin with for the
+     * clients selected with <code>mailserver.protocolLog</code>. Message content is not logged.
+     *
+     * @param enabled true to log the session's protocol exchanges, and false otherwise.
+     */
+    public void setProtocolLogging(boolean enabled) {
+        if (enabled && logName == null)
+            logName = String.valueOf(channel.socket().getRemoteSocketAddress());
+        protocolLogging = enabled;
+    }
+
+    /**
+     * Returns a request line as it should be logged, so a subclass can hide sensitive arguments such as passwords.
+     * The default implementation returns the line unchanged.
+     *
+     * @param line The request line.
+     * @return The text to log.
+     */
+    protected String describeRequest(String line) {
+        return line;
+    }
+
+    /**
+     * Queues the initial welcome message. Called once by <code>begin()</code>, before any request is read.
+     *
+     * @throws IOException If there is an error setting up the session.
+     */
+    protected abstract void start() throws IOException;
+
+    /**
+     * Starts the session, counting it as active until it is released, and queues the initial welcome message. Called
+     * once by the driving loop, before any request is read.
+     *
+     * @throws IOException If there is an error setting up the session.
+     */
+    public void begin() throws IOException {
+        started = true;
+        metrics.sessionOpened();
+        start();
+    }
+
+    /**
+     * Processes an individual request line, without its line terminator, and queues the corresponding response.
+     *
+     * @param line The request line.
+     * @throws IOException If there is an error processing the request.
+     */
+    protected abstract void handleLine(String line) throws IOException;
+
+    /**
+     * Processes an individual raw line as received from the client, including its line terminator, before it is
+     * decoded. Allows a subclass to consume lines, such as message content, without converting them to Strings. The
+     * bytes are only valid during the call. The default implementation does not consume any line.
+     *
+     * @param line   Array containing the line.
+     * @param offset Offset of the first byte of the line in the array.
+     * @param length Length of the line, including its terminator.
+     * @return true if the line was consumed, or false if it should be passed to <code>handleLine()</code>.
+     * @throws IOException If there is an error processing the line.
+     */
+    protected boolean handleRawLine(byte[] line, int offset, int length) throws IOException {
+        return false;
+    }
+
+    /**
+     * Returns the maximum length of a line received from the client, including its line terminator. Longer lines are
+     * not buffered: they are reported with <code>handleLineTooLong()</code>, and their content is discarded up to the
+     * next line terminator, so a client cannot make the session buffer an unlimited amount of input.
+     *
+     * @return The maximum line length, in bytes.
+     */
+    protected abstract int getMaxLineLength();
+
+    /**
+     * Called when a line received from the client exceeds the maximum length, before the rest of the line is
+     * discarded, so the subclass can queue an error response or reject the message the line belongs to.
+     *
+     * @throws IOException If there is an error processing the line.
+     */
+    protected abstract void handleLineTooLong() throws IOException;
+
+    /**
+     * Processes a block of counted content requested with <code>expectContent()</code>, as received from the client.
+     * The content is delivered in as many blocks as needed, each as large as the input allows, and the bytes are only
+     * valid during the call. The default implementation discards the content.
+     *
+     * @param content  Array containing the content.
+     * @param offset   Offset of the first byte of the block in the array.
+     * @param length   Length of the block.
+     * @param complete true if this is the last block of the expected content.
+     * @throws IOException If there is an error processing the content.
+     */
+    protected void handleContent(byte[] content, int offset, int length, boolean complete) throws IOException {
+    }
+
+    /**
+     * Announces that the next bytes of input are counted content (e.g., a length-prefixed chunk), which is passed as is
+     * to <code>handleContent()</code> instead of being split into lines. Reading resumes with request lines once all
+     * the content was processed. Empty content is delivered right away, as a single empty block. Must be called while
+     * processing a request.
+     *
+     * @param length Number of bytes of content.
+     * @throws IOException If there is an error processing empty content.
+     */
+    protected void expectContent(long length) throws IOException {
+        if (length == 0) {
+            handleContent(readBuffer.array(), 0, 0, true);
+            return;
+        }
+        contentRemaining = length;
+        if (length > readBuffer.capacity() && readBuffer.capacity() < CONTENT_BUFFER_SIZE) {
+            // Read large content in bulk, rather than in blocks the size of a request line
+            ByteBuffer larger = ByteBuffer.allocate(CONTENT_BUFFER_SIZE);
+            System.arraycopy(readBuffer.array(), 0, larger.array(), 0, readBuffer.limit());
+            larger.limit(readBuffer.limit()).position(readBuffer.position());
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Returns true if responses should be sent as soon as each request is processed. Sessions that support pipelining
+     * return false, so the responses to all the requests received together are coalesced and sent in a single write
+     * once the available input has been processed. The default implementation returns true.
+     *
+     * @return true if output is written after each request, and false if it is written once the input is drained.
+     */
+    protected boolean flushesEachReply() {
+        return true;
+    }
+
+    /**
+     * Called once the connection is closed, so the subclass can release any resources it still holds. The default
+     * implementation does nothing.
+     */
+    protected void onClose() {
+    }
+
+    /**
+     * Queues the response sent to a client that is refused because the server is at its session limit.
+     */
+    protected abstract void rejectBusy();
+
+    /**
+     * Queues a response to be sent to the client. The content is only sent once the output is written by the
+     * driving loop.
+     *
+     * @param text The response text, including any line terminators.
+     */
+    protected void reply(String text) {
+        if (protocolLogging)
+            Log.protocol("{} S: {}", logName, text);
+        byte[] bytes = text.getBytes(CHARSET);
+        if (replyBuffer != null && replyBuffer.remaining() < bytes.length)
+            queueReplies();
+        if (replyBuffer == null)
+            replyBuffer = ByteBuffer.allocate(Math.max(WRITE_CHUNK_SIZE, bytes.length));
+        replyBuffer.put(bytes);
+    }
+
+    /**
+     * Queues a region of a file to be sent to the client after any previously queued response. The content is
+     * transferred directly from the file to the socket, without being decoded or copied into the session. The session
+     * takes ownership of the file channel, which is closed once the region has been sent or the session is closed.
+     *
+     * @param file     The file containing the content to send.
+     * @param position The position in the file where the content starts.
+     * @param count    The number of bytes to send.
+     */
+    protected void replyFile(FileChannel file, long position, long count) {
+        if (protocolLogging)
+            Log.protocol("{} S: ({} bytes of content)", logName, count);
+        queueReplies();
+        pendingWrites.add(new FileRegion(file, position, count));
+    }
+
+    /**
+     * Queues content held in a buffer to be sent to the client after any previously queued response, without copying
+     * it. The buffer's remaining content is sent; the buffer itself is not modified, so the same buffer (e.g., a cached
+     * message) may be sent by any number of sessions at the same time.
+     *
+     * @param content The buffer with the content to send.
+     */
+    protected void replyBuffer(ByteBuffer content) {
+        if (protocolLogging)
+            Log.protocol("{} S: ({} bytes of content)", logName, content.remaining());
+        queueReplies();
+        pendingWrites.add(new BufferRegion(content.duplicate()));
+    }
+
+    /**
+     * Moves the replies accumulated so far to the queue of buffers ready to be written to the channel.
+     */
+    private void queueReplies() {
+        if (replyBuffer == null)
+            return;
+        replyBuffer.flip();
+        pendingWrites.add(new BufferRegion(replyBuffer));
+        replyBuffer = null;
+    }
+
+    /**
+     * Marks the session to be closed once all queued responses have been sent. No further requests are processed.
+     */
+    protected void closeWhenFlushed() {
+        closing = true;
+    }
+
+    /**
+     * Returns true if the session was marked to be closed, either by the protocol or because the client disconnected.
+     *
+     * @return true if no further requests will be processed, and false otherwise.
+     */
+    public boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Returns true if there are responses queued that were not yet sent to the client.
+     *
+     * @return true if there is pending output, and false otherwise.
+     */
+    public boolean hasPendingOutput() {
+        return !pendingWrites.isEmpty() || replyBuffer != null;
+    }
+
+    /**
+     * Returns true if processing of the input was suspended because the client is not reading the responses fast
+     * enough, so there are requests already received that wait for <code>readInput()</code> to be called again once
+     * the output is written.
+     *
+     * @return true if there are received requests left to process, and false otherwise.
+     */
+    public boolean hasUnprocessedInput() {
+        return inputSuspended;
+    }
+
+    /**
+     * Reads whatever is available from the channel and processes every complete request line. In non-blocking mode
+     * this never waits for input; in blocking mode it waits until at least some input is available. Unless the session
+     * flushes each reply, responses stay queued until the caller writes the output, after all the input was processed.
+     * If too many responses are queued and the channel does not accept them, processing is suspended, and the next
+     * call resumes it with the requests already received instead of reading from the channel.
+     *
+     * @throws IOException If there is an error reading from the channel or processing a request.
+     */
+    public void readInput() throws IOException {
+        if (inputSuspended) {
+            inputSuspended = false;
+        } else {
+            if (!readBuffer.hasRemaining()) {
+                // A single line does not fit in the buffer, so make room for it (up to the maximum line length)
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                closing = true;
+                return;
+            }
+            metrics.read(read);
+        }
+        readBuffer.flip();
+        try {
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit() && !closing && !inputSuspended; i++) {
+                if (contentRemaining > 0) {
+                    // Counted content is passed on in bulk, without looking for line terminators
+                    int length = (int) Math.min(contentRemaining, readBuffer.limit() - lineStart);
+                    int start = lineStart;
+                    lineStart += length;
+                    i = lineStart - 1;
+                    readBuffer.position(lineStart);
+                    contentRemaining -= length;
+                    handleContent(readBuffer.array(), start, length, contentRemaining == 0);
+                    continue;
+                }
+                if (readBuffer.get(i) != '\n') {
+                    if (discardingLine) {
+                        // The rest of a line that is too long is dropped as it arrives
+                        lineStart = i + 1;
+                        readBuffer.position(lineStart);
+                    } else if (i + 1 - lineStart >= getMaxLineLength()) {
+                        // Even the line terminator would not fit
+                        discardingLine = true;
+                        lineStart = i + 1;
+                        readBuffer.position(lineStart);
+                        handleLineTooLong();
+                    }
+                    continue;
+                }
+                int start = lineStart;
+                lineStart = i + 1;
+                readBuffer.position(lineStart);
+                if (discardingLine) {
+                    discardingLine = false;
+                    continue;
+                }
+                if (!handleRawLine(readBuffer.array(), start, lineStart - start)) {
+                    int lineEnd = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    String line = new String(readBuffer.array(), start, lineEnd - start, CHARSET);
+                    if (protocolLogging)
+                        Log.protocol("{} C: {}", logName, describeRequest(line));
+                    long handleStart = System.nanoTime();
+                    handleLine(line);
+                    metrics.command(line).recordSince(handleStart);
+                }
+                // Queued files stay open until they are sent, so a long pipeline is written out as it is processed
+                if ((flushesEachReply() || pendingWrites.size() >= MAX_QUEUED_WRITES) && !writeOutput())
+                    inputSuspended = true;
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Writes as much of the queued output as the channel accepts. In blocking mode all queued output is written.
+     *
+     * @return true if all queued output was written, and false if some output remains queued.
+     * @throws IOException If there is an error writing to the channel.
+     */
+    public boolean writeOutput() throws IOException {
+        queueReplies();
+        while (!pendingWrites.isEmpty()) {
+            if (!pendingWrites.peekFirst().writeTo(channel, metrics))
+                return false;
+            pendingWrites.removeFirst().release();
+        }
+        return true;
+    }
+
+    /**
+     * Discards any output that was not sent, releasing the files queued with <code>replyFile()</code>, as well as any
+     * other resources held by the subclass. Called by the driving loop when the connection is closed.
+     */
+    public void release() {
+        if (started) {
+            started = false;
+            metrics.sessionClosed();
+        }
+        replyBuffer = null;
+        while (!pendingWrites.isEmpty())
+            pendingWrites.removeFirst().release();
+        onClose();
+    }
+
+    /**
+     * Refuses the connection because the server is at its session limit: sends the protocol's busy response and
+     * closes the connection. Must be called while the channel is still in blocking mode.
+     *
+     * @throws IOException If there is an error writing the response or closing the channel.
+     */
+    public void reject() throws IOException {
+        try (this.channel) {
+            rejectBusy();
+            writeOutput();
+        }
+    }
+
+    /**
+     * Handles the communication with an individual client in blocking mode. Sends the initial welcome message, and
+     * then repeatedly reads and processes requests until the connection is terminated or the session is closed by the
+     * protocol. Closes the connection before returning.
+     */
+    @Override
+    public void run() {
+        try (this.channel) {
+            begin();
+            writeOutput();
+            while (!closing) {
+                readInput();
+                writeOutput();
+            }
+        } catch (IOException e) {
+            Log.error("Error in client's connection handling.", e);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Output queued for a client that has not been completely written yet.
+     */
+    private interface PendingWrite {
+
+        /**
+         * Writes as much of the content as the channel accepts.
+         *
+         * @param channel The client's channel.
+         * @param metrics The metrics that count the bytes written.
+         * @return true if all the content was written, and false otherwise.
+         * @throws IOException If there is an error writing to the channel.
+         */
+        boolean writeTo(SocketChannel channel, ProtocolMetrics metrics) throws IOException;
+
+        /**
+         * Releases any resources associated to the content.
+         */
+        void release();
+    }
+
+    /**
+     * Text responses accumulated in a buffer.
+     */
+    private static class BufferRegion implements PendingWrite {
+
+        private final ByteBuffer buffer;
+
+        BufferRegion(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel, ProtocolMetrics metrics) throws IOException {
+            metrics.written(channel.write(buffer));
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * A region of a file, transferred directly to the socket with <code>FileChannel.transferTo()</code>.
+     */
+    private static class FileRegion implements PendingWrite {
+
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel, ProtocolMetrics metrics) throws IOException {
+            while (position < end) {
+                long written = file.transferTo(position, end - position, channel);
+                metrics.written(written);
+                if (written <= 0)
+                    // Either the socket is not ready, or the file was truncated and there is nothing left to send
+                    return position >= file.size();
+                position += written;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing else to do, the content is no longer needed
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package mailserver.net;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Creates the protocol session that handles an accepted client connection.
+ */
+@FunctionalInterface
+public interface SessionFactory {
+
+    /**
+     * Creates the session state for a newly accepted connection.
+     *
+     * @param channel The socket channel associated to the accepted connection.
+     * @return The session responsible for the connection.
+     * @throws IOException If there is an error attempting to retrieve the channel's information.
+     */
+    Session create(SocketChannel channel) throws IOException;
+}
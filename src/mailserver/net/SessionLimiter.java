@@ -0,0 +1,54 @@
+package mailserver.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for client connections. Keeps track of the number of active sessions and refuses new sessions
+ * once a configured maximum is reached.
+ */
+public class SessionLimiter {
+
+    private final int maxSessions;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param maxSessions Maximum number of concurrent sessions. Zero or a negative value disables the limit.
+     */
+    public SessionLimiter(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Reserves a slot for a new session, if the limit was not reached yet. Every successful call must eventually be
+     * matched by a call to <code>release()</code>.
+     *
+     * @return true if the session may proceed, and false if it should be refused.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = activeSessions.get();
+            if (maxSessions > 0 && current >= maxSessions)
+                return false;
+            if (activeSessions.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Releases the slot reserved by a session that has finished.
+     */
+    public void release() {
+        activeSessions.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of sessions currently active.
+     *
+     * @return The number of active sessions.
+     */
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+}